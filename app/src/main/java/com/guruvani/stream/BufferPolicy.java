@@ -0,0 +1,162 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/**
+ * Adaptive buffering policy for the VLC player.
+ *
+ * The caching value is calculated from the media type (local file, live stream, on-demand),
+ * the measured throughput & round trip time of the origin and the stalls of previous sessions.
+ * All measurements are averaged (EWMA) and stored per network type (wifi/mobile) in the
+ * shared preferences, so the next session starts with the learned values.
+ */
+public class BufferPolicy {
+    public final static int MEDIA_LOCAL = 0;
+    public final static int MEDIA_LIVE = 1;
+    public final static int MEDIA_ON_DEMAND = 2;
+
+    /** used as long as nothing was measured on this network (the former fixed value) **/
+    public final static int DEFAULT_CACHING_MS = 6000;
+    public final static int LOCAL_CACHING_MS = 300;
+    public final static int MIN_CACHING_MS = 1000;
+    public final static int MAX_CACHING_MS = 12000;
+
+    /** live streams can't refill faster than realtime, they get a bigger base reserve **/
+    private final static int LIVE_EXTRA_MS = 1000;
+    /** added per stall, reduced again after each session without a stall **/
+    private final static int STALL_PENALTY_STEP_MS = 1000;
+    private final static int STALL_PENALTY_DECAY_MS = 500;
+    private final static int STALL_PENALTY_MAX_MS = 5000;
+    /** 128kbit/s MP3 **/
+    private final static float BITRATE_BYTES_PER_SEC = 16 * 1024;
+    private final static float ALPHA = 0.3f;
+    private final static String PREFS_NAME = "bufferpolicy";
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    //null until the values of the first network are loaded
+    private String network = null;
+    private float throughput = 0;
+    private float rtt = 0;
+    private int stallPenalty = 0;
+    private boolean sessionActive = false;
+    private boolean sessionStalled = false;
+
+    public BufferPolicy(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        refreshNetwork();
+    }
+
+    public static int mediaTypeFor(String url) {
+        if(!url.contains("http")) return MEDIA_LOCAL;
+        if(url.equals(ORFParser.ORF_LIVE_URL)) return MEDIA_LIVE;
+        return MEDIA_ON_DEMAND;
+    }
+
+    /** caching value in ms for the given media type (one of MEDIA_*) */
+    public synchronized int getCachingMs(int mediaType) {
+        if(mediaType == MEDIA_LOCAL) return LOCAL_CACHING_MS;
+
+        int caching;
+        if(throughput <= 0 || rtt <= 0) {
+            caching = DEFAULT_CACHING_MS;
+        } else {
+            //a few round trips + a reserve, which grows if the link is barely faster than the bitrate
+            float ratio = Math.max(throughput / BITRATE_BYTES_PER_SEC, 0.5f);
+            caching = (int)(MIN_CACHING_MS + 3 * rtt + 6000 / ratio);
+        }
+        if(mediaType == MEDIA_LIVE) caching += LIVE_EXTRA_MS;
+        caching += stallPenalty;
+        caching = Math.max(MIN_CACHING_MS, Math.min(MAX_CACHING_MS, caching));
+        Log.d("BUFFERPOLICY", network + ": throughput=" + (int)throughput + "B/s rtt=" + (int)rtt
+                + "ms penalty=" + stallPenalty + "ms -> caching=" + caching + "ms");
+        return caching;
+    }
+
+    /** time from the request to the response header of the origin */
+    public synchronized void recordRtt(long ms) {
+        if(ms <= 0) return;
+        rtt = rtt <= 0 ? ms : rtt + ALPHA * (ms - rtt);
+    }
+
+    /** a transfer from the origin, short transfers are ignored (too noisy) */
+    public synchronized void recordTransfer(long bytes, long ms) {
+        if(bytes < 64 * 1024 || ms <= 0) return;
+        float sample = bytes * 1000f / ms;
+        throughput = throughput <= 0 ? sample : throughput + ALPHA * (sample - throughput);
+    }
+
+    public synchronized void recordStall() {
+        if(!sessionStalled) {
+            stallPenalty = Math.min(STALL_PENALTY_MAX_MS, stallPenalty + STALL_PENALTY_STEP_MS);
+        }
+        sessionStalled = true;
+    }
+
+    public synchronized void startSession() {
+        endSession();
+        refreshNetwork();
+        sessionActive = true;
+        sessionStalled = false;
+    }
+
+    /** a session without a stall reduces the penalty again, all values are persisted */
+    public synchronized void endSession() {
+        if(!sessionActive || network == null) return;
+        if(!sessionStalled) {
+            stallPenalty = Math.max(0, stallPenalty - STALL_PENALTY_DECAY_MS);
+        }
+        sessionActive = false;
+        save();
+    }
+
+    /** the network may have changed (wifi <-> mobile): switch to its learned values */
+    private void refreshNetwork() {
+        String current = "none";
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm != null ? cm.getActiveNetworkInfo() : null;
+        if(info != null && info.isConnected()) {
+            current = info.getType() == ConnectivityManager.TYPE_WIFI ? "wifi" : "mobile";
+        }
+        if(current.equals(network)) return;
+        if(network != null) save();
+        network = current;
+        throughput = prefs.getFloat(network + "_throughput", 0);
+        rtt = prefs.getFloat(network + "_rtt", 0);
+        stallPenalty = prefs.getInt(network + "_penalty", 0);
+    }
+
+    private void save() {
+        prefs.edit()
+                .putFloat(network + "_throughput", throughput)
+                .putFloat(network + "_rtt", rtt)
+                .putInt(network + "_penalty", stallPenalty)
+                .apply();
+    }
+}
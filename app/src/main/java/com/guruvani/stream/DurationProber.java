@@ -0,0 +1,286 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Background prober for the duration of the remote programs.
+ *
+ * Only the first PROBE_BYTES of a file are fetched (Range request). The duration is taken
+ * from the Xing/Info or VBRI header of the first frame, otherwise it is estimated from the
+ * bitrate & the total length (CBR). At most PARALLEL_PROBES requests run at the same time.
+ *
+ * The durations are kept in memory, the shared preferences are only read once (in background)
+ * and written per probed URL. On loading, the stored durations of programs, which are no longer
+ * in the lists (ProgramDays), are dropped, so the stored set doesn't grow forever.
+ * A failed URL is probed again after FAILED_RETRY_MS.
+ *
+ * One prober is kept in the retained MainFragment: the running probes & the failed URLs
+ * survive runtime changes, the adapter of the current activity is registered as listener.
+ */
+public class DurationProber {
+    private final static int PROBE_BYTES = 16 * 1024;
+    private final static int PARALLEL_PROBES = 2;
+    private final static String PREFS_NAME = "durations";
+    private final static long FAILED_RETRY_MS = 30 * 60 * 1000;
+
+    public interface Listener {
+        /** durations of these URLs are available, called on the main thread (coalesced) */
+        void onDurationsChanged(HashSet<String> urls);
+    }
+
+    private final SharedPreferences prefs;
+    private final ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_PROBES);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    //guarded by this
+    private final HashMap<String, Long> durations = new HashMap<>();
+    private boolean loaded = false;
+    private final HashSet<String> inFlight = new HashSet<>();
+    //failed URL -> time of the failure (elapsedRealtime)
+    private final HashMap<String, Long> failed = new HashMap<>();
+    private HashSet<String> probed = new HashSet<>();
+    private boolean deliveryPosted = false;
+    //main thread only
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            HashSet<String> urls;
+            synchronized (DurationProber.this) {
+                deliveryPosted = false;
+                urls = probed;
+                probed = new HashSet<>();
+            }
+            for(int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onDurationsChanged(urls);
+            }
+        }
+    };
+
+    public DurationProber(Context context, final ProgramDays days) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load(days.snapshot());
+            }
+        });
+    }
+
+    /** read the stored durations, the ones of programs, which aren't listed anymore, are removed */
+    private void load(ProgramDays.Snapshot snapshot) {
+        HashSet<String> listed = new HashSet<>();
+        for(int day : snapshot.getDays()) {
+            for(ORFParser.ORFProgram program : snapshot.get(day)) {
+                listed.add(program.url);
+            }
+        }
+        HashMap<String, Long> stored = new HashMap<>();
+        SharedPreferences.Editor editor = prefs.edit();
+        int dropped = 0;
+        for(Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            //nothing is dropped without lists (first start)
+            if(!(entry.getValue() instanceof Long) || (!listed.isEmpty() && !listed.contains(entry.getKey()))) {
+                editor.remove(entry.getKey());
+                dropped++;
+            } else {
+                stored.put(entry.getKey(), (Long) entry.getValue());
+            }
+        }
+        if(dropped > 0) editor.apply();
+        Log.d("DURATIONPROBER", stored.size() + " durations loaded, " + dropped + " dropped");
+        synchronized (this) {
+            //durations probed meanwhile are newer
+            stored.putAll(durations);
+            durations.clear();
+            durations.putAll(stored);
+            loaded = true;
+            //the rows, which were bound before, are updated
+            probed.addAll(stored.keySet());
+            postDelivery();
+        }
+    }
+
+    //guarded by this
+    private void postDelivery() {
+        if(!deliveryPosted) {
+            deliveryPosted = true;
+            mainHandler.post(deliver);
+        }
+    }
+
+    /** called on the main thread */
+    public void addListener(Listener listener) {
+        if(!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** stop the running probes, the prober can't be used afterwards */
+    public void close() {
+        executor.shutdownNow();
+        mainHandler.removeCallbacks(deliver);
+        listeners.clear();
+    }
+
+    /** cached duration in ms, 0 if unknown (or not loaded yet) */
+    public synchronized long getDuration(String url) {
+        Long duration = durations.get(url);
+        return duration != null ? duration : 0;
+    }
+
+    /**
+     * duration in ms, if it is cached. Otherwise the file is probed in background
+     * and the listeners are notified, 0 is returned.
+     */
+    public long probeDuration(final String url) {
+        long duration = getDuration(url);
+        if(duration > 0 || url == null || !url.contains("http")) return duration;
+        synchronized (this) {
+            //the stored durations are delivered, when they are loaded
+            if(!loaded) return 0;
+            Long failedAt = failed.get(url);
+            if(failedAt != null) {
+                if(SystemClock.elapsedRealtime() - failedAt < FAILED_RETRY_MS) return 0;
+                failed.remove(url);
+            }
+            if(!inFlight.add(url)) return 0;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long duration = probe(url);
+                synchronized (DurationProber.this) {
+                    inFlight.remove(url);
+                    if(duration <= 0) {
+                        failed.put(url, SystemClock.elapsedRealtime());
+                        return;
+                    }
+                    durations.put(url, duration);
+                    probed.add(url);
+                    postDelivery();
+                }
+                prefs.edit().putLong(url, duration).apply();
+            }
+        });
+        return 0;
+    }
+
+    /** fetch the beginning of the file & parse it, 0 if it failed */
+    static long probe(String url) {
+        try {
+            byte[] data = new byte[PROBE_BYTES];
+            long[] total = new long[1];
+            int length = fetch(url, 0, data, total);
+            int audioStart = Mp3Frame.id3v2Size(data);
+            int offset = 0;
+            //a big tag (cover image): fetch the area behind it
+            if(audioStart > length - 1024) {
+                length = fetch(url, audioStart, data, total);
+            } else {
+                offset = audioStart;
+            }
+
+            //first frame header, confirmed by the following one
+            for(int i = offset; i + 4 <= length; i++) {
+                Mp3Frame frame = Mp3Frame.parse(readInt(data, i));
+                if(frame == null) continue;
+                int next = i + frame.length;
+                if(next + 4 <= length && Mp3Frame.parse(readInt(data, next)) == null) continue;
+
+                int frames = frame.vbrFrameCount(data, i, length);
+                if(frames > 0) {
+                    return frames * (long) frame.samples * 1000 / frame.sampleRate;
+                }
+                if(total[0] <= 0) return 0;
+                //CBR: audio bytes / bitrate
+                long audioBytes = total[0] - audioStart - (i - offset);
+                return audioBytes * 8 / frame.bitrate;
+            }
+        } catch (IOException e) {
+            Log.d("DURATIONPROBER", url + ": " + e.getMessage());
+        }
+        return 0;
+    }
+
+    /** read up to data.length bytes at the given offset, total[0] is set to the size of the file */
+    private static int fetch(String url, long offset, byte[] data, long[] total) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(10000);
+        conn.setReadTimeout(10000);
+        conn.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + data.length - 1));
+        InputStream in = null;
+        try {
+            int code = conn.getResponseCode();
+            String contentRange = conn.getHeaderField("Content-Range");
+            if(code == HttpURLConnection.HTTP_PARTIAL && contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                try {
+                    total[0] = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+                } catch (NumberFormatException ignored) {
+                }
+            } else if(code == HttpURLConnection.HTTP_OK) {
+                //no range support: only the beginning is read, the connection is closed then
+                if(offset > 0) throw new IOException("Range not supported");
+                total[0] = conn.getContentLength();
+            } else {
+                throw new IOException("Server returned " + code);
+            }
+            in = conn.getInputStream();
+            int read = 0;
+            int n;
+            while(read < data.length && (n = in.read(data, read, data.length - read)) > 0) {
+                read += n;
+            }
+            return read;
+        } finally {
+            if(in != null) {
+                try { in.close(); } catch (IOException ignored) { }
+            }
+            conn.disconnect();
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
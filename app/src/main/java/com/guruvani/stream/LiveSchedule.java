@@ -0,0 +1,133 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Comparator;
+import java.util.GregorianCalendar;
+
+/**
+ * Time index of the live program: the start times of the programs of today & yesterday
+ * (ORFProgram.time, "HH:mm"), sorted, so the current and the next program are found by a binary search.
+ *
+ * A list, which runs past midnight, continues on the next day (a time before the previous one).
+ * The schedule is immutable, a changed day list creates a new one.
+ */
+public class LiveSchedule {
+    private final static long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    /** start times (epoch ms), ascending **/
+    private final long[] starts;
+    private final ORFParser.ORFProgram[] programs;
+
+    private LiveSchedule(long[] starts, ORFParser.ORFProgram[] programs) {
+        this.starts = starts;
+        this.programs = programs;
+    }
+
+    /** schedule from the lists of today & yesterday, which are loaded (null if there is none) */
+    public static LiveSchedule build(ProgramDays.Snapshot days) {
+        final ArrayList<Long> startList = new ArrayList<>();
+        final ArrayList<ORFParser.ORFProgram> programList = new ArrayList<>();
+        for(int day = 1; day >= 0; day--) {
+            ArrayList<ORFParser.ORFProgram> programs = days.get(day);
+            int dateKey = days.getDateKey(day);
+            if(programs == null || dateKey == 0) continue;
+            Calendar midnight = new GregorianCalendar(dateKey / 10000, dateKey / 100 % 100 - 1, dateKey % 100);
+            long base = midnight.getTimeInMillis();
+            int previous = -1;
+            for(ORFParser.ORFProgram program : programs) {
+                int minutes = parseMinutes(program.time);
+                if(minutes < 0) continue;
+                //after midnight
+                if(minutes < previous) base += DAY_MS;
+                previous = minutes;
+                startList.add(base + minutes * 60000L);
+                programList.add(program);
+            }
+        }
+        if(programList.isEmpty()) return null;
+
+        //the lists overlap around midnight: sort all programs by their start
+        Integer[] order = new Integer[startList.size()];
+        for(int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return startList.get(a).compareTo(startList.get(b));
+            }
+        });
+        long[] starts = new long[order.length];
+        ORFParser.ORFProgram[] programs = new ORFParser.ORFProgram[order.length];
+        for(int i = 0; i < order.length; i++) {
+            starts[i] = startList.get(order[i]);
+            programs[i] = programList.get(order[i]);
+        }
+        return new LiveSchedule(starts, programs);
+    }
+
+    /** index of the program, which runs at the given time, -1 if it's before the first one */
+    private int indexAt(long time) {
+        int index = Arrays.binarySearch(starts, time);
+        if(index >= 0) {
+            //the last of equal start times
+            while(index + 1 < starts.length && starts[index + 1] == time) index++;
+            return index;
+        }
+        return -index - 2;
+    }
+
+    /** program, which runs at the given time (epoch ms), null if unknown */
+    public ORFParser.ORFProgram current(long time) {
+        int index = indexAt(time);
+        return index >= 0 ? programs[index] : null;
+    }
+
+    /** the program after the current one, null if unknown */
+    public ORFParser.ORFProgram next(long time) {
+        int index = indexAt(time) + 1;
+        return index < programs.length ? programs[index] : null;
+    }
+
+    /** start (epoch ms) of the next program, -1 if there is none */
+    public long nextStart(long time) {
+        int index = indexAt(time) + 1;
+        return index < starts.length ? starts[index] : -1;
+    }
+
+    /** "HH:mm" -> minutes of the day, -1 if invalid */
+    private static int parseMinutes(String time) {
+        if(time == null) return -1;
+        int colon = time.indexOf(':');
+        if(colon <= 0) return -1;
+        try {
+            int hours = Integer.parseInt(time.substring(0, colon).trim());
+            int minutes = Integer.parseInt(time.substring(colon + 1, Math.min(time.length(), colon + 3)).trim());
+            if(hours < 0 || hours > 23 || minutes < 0 || minutes > 59) return -1;
+            return hours * 60 + minutes;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Supervisor of the live playback.
+ *
+ * A watchdog checks, that the position keeps progressing while the live stream is played.
+ * If there is no progress for STALL_TIMEOUT_MS, or the player reports an error / the end
+ * of the (endless) stream, a reconnect is requested. Reconnects are retried with a backoff
+ * until the playback progresses again.
+ *
+ * Stalls, reconnects and the reconnect latency (request -> progress) are counted.
+ * All methods must be called on the main thread.
+ */
+public class LiveSupervisor {
+    private final static long WATCHDOG_INTERVAL_MS = 2000;
+    private final static long STALL_TIMEOUT_MS = 8000;
+    private final static long RECONNECT_MIN_MS = 500;
+    private final static long RECONNECT_MAX_MS = 30000;
+
+    public interface Callback {
+        /** restart the live playback, the player should be reused */
+        void onReconnect();
+    }
+
+    private final Handler handler = new Handler();
+    private final Callback callback;
+    private boolean active = false;
+    private boolean paused = false;
+    private boolean stalled = false;
+    private boolean reconnectPending = false;
+    private long lastProgress = 0;
+    private long backoff = RECONNECT_MIN_MS;
+    //time of the first reconnect of the current stall, 0 if there is none
+    private long reconnectStart = 0;
+
+    private int stallCount = 0;
+    private int reconnectCount = 0;
+    private long lastReconnectLatency = 0;
+    private long totalReconnectLatency = 0;
+    private int recoveredCount = 0;
+
+    private final Runnable watchdog = new Runnable() {
+        @Override
+        public void run() {
+            if(!active) return;
+            if(!paused && !reconnectPending && SystemClock.elapsedRealtime() - lastProgress > STALL_TIMEOUT_MS) {
+                onStall();
+                scheduleReconnect();
+            }
+            handler.postDelayed(this, WATCHDOG_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            reconnectPending = false;
+            if(!active) return;
+            reconnectCount++;
+            if(reconnectStart == 0) reconnectStart = SystemClock.elapsedRealtime();
+            //the reconnect gets a full timeout, before the next one is tried
+            lastProgress = SystemClock.elapsedRealtime();
+            Log.i("LIVESUPERVISOR", "Reconnect #" + reconnectCount + ", next backoff " + backoff + "ms");
+            callback.onReconnect();
+        }
+    };
+
+    public LiveSupervisor(Callback callback) {
+        this.callback = callback;
+    }
+
+    /** a live playback started */
+    public void start() {
+        stop();
+        active = true;
+        paused = false;
+        stalled = false;
+        backoff = RECONNECT_MIN_MS;
+        reconnectStart = 0;
+        lastProgress = SystemClock.elapsedRealtime();
+        handler.postDelayed(watchdog, WATCHDOG_INTERVAL_MS);
+    }
+
+    public void stop() {
+        active = false;
+        reconnectPending = false;
+        handler.removeCallbacks(watchdog);
+        handler.removeCallbacks(reconnect);
+    }
+
+    /** no progress is expected while paused */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+        lastProgress = SystemClock.elapsedRealtime();
+    }
+
+    /** the position advanced: the playback is (again) fine */
+    public void onProgress() {
+        if(!active) return;
+        lastProgress = SystemClock.elapsedRealtime();
+        stalled = false;
+        if(reconnectStart > 0) {
+            lastReconnectLatency = lastProgress - reconnectStart;
+            totalReconnectLatency += lastReconnectLatency;
+            recoveredCount++;
+            reconnectStart = 0;
+            Log.i("LIVESUPERVISOR", "Recovered after " + lastReconnectLatency + "ms (stalls=" + stallCount
+                    + ", reconnects=" + reconnectCount + ")");
+        }
+        backoff = RECONNECT_MIN_MS;
+    }
+
+    /** buffering after the start: counted as stall, the watchdog decides about a reconnect */
+    public void onBuffering(float percent) {
+        if(active && !paused && percent < 100f) onStall();
+    }
+
+    /** error or end of the stream: reconnect without waiting for the watchdog */
+    public void onError() {
+        if(!active) return;
+        onStall();
+        scheduleReconnect();
+    }
+
+    public int getStallCount() {
+        return stallCount;
+    }
+
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    public long getLastReconnectLatency() {
+        return lastReconnectLatency;
+    }
+
+    /** average time from the first reconnect to the recovered playback, 0 if nothing was recovered yet */
+    public long getAverageReconnectLatency() {
+        return recoveredCount > 0 ? totalReconnectLatency / recoveredCount : 0;
+    }
+
+    private void onStall() {
+        if(stalled) return;
+        stalled = true;
+        stallCount++;
+        Log.i("LIVESUPERVISOR", "Stall #" + stallCount);
+    }
+
+    private void scheduleReconnect() {
+        if(reconnectPending) return;
+        reconnectPending = true;
+        //the first attempt is fast, the following ones back off
+        handler.postDelayed(reconnect, reconnectStart == 0 ? 0 : backoff);
+        if(reconnectStart > 0) backoff = Math.min(backoff * 2, RECONNECT_MAX_MS);
+    }
+}
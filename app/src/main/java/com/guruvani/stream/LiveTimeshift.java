@@ -0,0 +1,448 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+
+/**
+ * Time-shift buffer for the live stream.
+ *
+ * A background thread keeps receiving the live stream into a bounded ring file on disk
+ * (also while the playback is paused). The player reads from this ring via the StreamProxy,
+ * so pause/resume, rewinding within the window and jumping back to live are possible.
+ * Short network drops are absorbed by the buffer, the recorder reconnects in the background.
+ *
+ * All positions are absolute byte positions since the start of the recording.
+ *
+ * Each recording (start) is a new generation with its own ring file & leases. stop() doesn't wait
+ * for the recorder: the stale recorder notices the newer generation, stops writing and closes &
+ * deletes its ring file (and releases its leases) itself.
+ *
+ * The ICY metadata (StreamTitle) is requested with the stream. The metadata blocks are
+ * taken out between the reads of the audio, so the audio is read directly into the chunk,
+ * which is written to the ring. Each new title is recorded with its ring position and
+ * handed to the MetadataListener.
+ */
+public class LiveTimeshift {
+    /** fallback if the stream doesn't tell its bitrate (128kbit/s) **/
+    private final static int DEFAULT_BYTES_PER_SEC = 16 * 1024;
+    private final static int CHUNK_SIZE = 8 * 1024;
+    private final static long RECONNECT_MIN_MS = 1000;
+    private final static long RECONNECT_MAX_MS = 10000;
+    /** titles, which are kept (the ring holds far less programs) **/
+    private final static int MAX_TITLES = 32;
+
+    private final File ringFile;
+    private final long capacity;
+    //the recording continues while the playback is paused: each recorder leases the locks itself
+    private LockLeaseManager locks;
+    private String url;
+    //the current recorder: a replaced one (stop/start) ends & doesn't write anymore
+    private volatile Thread recorder;
+    private volatile boolean running = false;
+    private volatile HttpURLConnection connection;
+    private volatile boolean reconnectNow = false;
+    private volatile MetadataListener metadataListener;
+
+    //guarded by this (written), the recorder of an older generation is stale
+    private volatile int generation = 0;
+    //guarded by this: the ring of the current generation
+    private RandomAccessFile ring;
+    private long writePos = 0;
+    private long readPos = 0;
+    private int bytesPerSec = DEFAULT_BYTES_PER_SEC;
+    //received StreamTitles & their ring positions, oldest first
+    private final ArrayList<Long> titlePositions = new ArrayList<>();
+    private final ArrayList<String> titles = new ArrayList<>();
+
+    public interface MetadataListener {
+        /**
+         * a new StreamTitle was received, it is heard when the player reaches the given ring position.
+         * Called on the recorder thread.
+         */
+        void onStreamTitle(String title, long position);
+    }
+
+    public LiveTimeshift(File ringFile, long capacity) {
+        this.ringFile = ringFile;
+        this.capacity = capacity;
+        //rings of a previous process, which was killed while recording
+        File[] stale = ringFile.getParentFile().listFiles();
+        if(stale != null) {
+            for(File file : stale) {
+                //noinspection ResultOfMethodCallIgnored
+                if(file.getName().startsWith(ringFile.getName())) file.delete();
+            }
+        }
+    }
+
+    public void setLocks(LockLeaseManager locks) {
+        this.locks = locks;
+    }
+
+    public void setMetadataListener(MetadataListener listener) {
+        metadataListener = listener;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** start recording the given stream, does nothing if it is already recorded */
+    public void start(final String streamUrl) throws IOException {
+        synchronized (this) {
+            if(running && streamUrl.equals(url)) return;
+        }
+        //the old recorder becomes stale, it never writes into the new ring
+        stop();
+        startRecorder(streamUrl);
+    }
+
+    private synchronized void startRecorder(final String streamUrl) throws IOException {
+        final int recording = ++generation;
+        final File file = new File(ringFile.getPath() + "." + recording);
+        final RandomAccessFile recordingRing = new RandomAccessFile(file, "rw");
+        try {
+            recordingRing.setLength(capacity);
+        } catch (IOException e) {
+            closeRing(recordingRing, file);
+            throw e;
+        }
+        url = streamUrl;
+        ring = recordingRing;
+        writePos = 0;
+        readPos = 0;
+        titlePositions.clear();
+        titles.clear();
+        running = true;
+        final LockLeaseManager.Lease wakeLease = locks != null ? locks.newLease(LockLeaseManager.WAKE, "timeshift") : null;
+        final LockLeaseManager.Lease wifiLease = locks != null ? locks.newLease(LockLeaseManager.WIFI, "timeshift") : null;
+        if(wakeLease != null) {
+            wakeLease.acquire();
+            wifiLease.acquire();
+        }
+        recorder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    record(streamUrl, recording);
+                } finally {
+                    synchronized (LiveTimeshift.this) {
+                        //ended by an error: the readers get the end of the stream
+                        if(isCurrent(recording)) {
+                            running = false;
+                            ring = null;
+                            LiveTimeshift.this.notifyAll();
+                        }
+                    }
+                    closeRing(recordingRing, file);
+                    if(wakeLease != null) {
+                        wakeLease.release();
+                        wifiLease.release();
+                    }
+                }
+            }
+        }, "LiveTimeshift");
+        recorder.start();
+    }
+
+    /** true, if the recorder of the given generation is still the current one */
+    private boolean isCurrent(int recording) {
+        return running && recording == generation;
+    }
+
+    private static void closeRing(RandomAccessFile file, File path) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w("TIMESHIFT", "Close failed: " + e.getMessage());
+        }
+        //noinspection ResultOfMethodCallIgnored
+        path.delete();
+    }
+
+    /**
+     * Stop the recording, doesn't block: the recorder is interrupted & ends in background,
+     * it deletes its ring file and releases its leases then.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            if(!running) return;
+            running = false;
+            generation++;
+            ring = null;
+            thread = recorder;
+            recorder = null;
+            //wake up all readers
+            notifyAll();
+        }
+        HttpURLConnection conn = connection;
+        if(conn != null) conn.disconnect();
+        if(thread != null) thread.interrupt();
+    }
+
+    /** drop the current connection and reconnect immediately (e.g. the connection stalled) */
+    public void reconnect() {
+        Thread thread;
+        synchronized (this) {
+            if(!running) return;
+            thread = recorder;
+            reconnectNow = true;
+        }
+        HttpURLConnection conn = connection;
+        if(conn != null) conn.disconnect();
+        if(thread != null) thread.interrupt();
+    }
+
+    /** oldest position, which is still available in the ring */
+    public synchronized long getOldestPosition() {
+        return Math.max(0, writePos - capacity);
+    }
+
+    /** newest position (live) */
+    public synchronized long getLivePosition() {
+        return writePos;
+    }
+
+    /** position the player is currently reading from */
+    public synchronized long getReadPosition() {
+        return readPos;
+    }
+
+    public synchronized int getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    /** StreamTitle at the given ring position, null if none was received before it */
+    public synchronized String getStreamTitle(long position) {
+        String title = null;
+        for(int i = 0; i < titles.size() && titlePositions.get(i) <= position; i++) {
+            title = titles.get(i);
+        }
+        return title;
+    }
+
+    private void addStreamTitle(String title, int recording) {
+        long position;
+        synchronized (this) {
+            if(!isCurrent(recording)) return;
+            position = writePos;
+            if(!titles.isEmpty() && title.equals(titles.get(titles.size() - 1))) return;
+            titlePositions.add(position);
+            titles.add(title);
+            if(titles.size() > MAX_TITLES) {
+                titlePositions.remove(0);
+                titles.remove(0);
+            }
+        }
+        MetadataListener listener = metadataListener;
+        if(listener != null) listener.onStreamTitle(title, position);
+    }
+
+    /** time the full ring holds at the current bitrate (ms) */
+    public synchronized long getCapacityMs() {
+        return capacity * 1000 / bytesPerSec;
+    }
+
+    /** position in the window for a fraction (0..1), 1 is live */
+    public synchronized long positionForFraction(float fraction) {
+        long oldest = getOldestPosition();
+        fraction = Math.max(0f, Math.min(1f, fraction));
+        return oldest + (long)((writePos - oldest) * fraction);
+    }
+
+    /** position of the player within the window (ms since the oldest available position) */
+    public synchronized long getPositionMs() {
+        return (readPos - getOldestPosition()) * 1000 / bytesPerSec;
+    }
+
+    /** length of the available window in ms */
+    public synchronized long getWindowMs() {
+        return (writePos - getOldestPosition()) * 1000 / bytesPerSec;
+    }
+
+    /**
+     * Read from the ring at the given position, blocks until data is available.
+     * If the position was already overwritten, reading continues at the oldest available position.
+     *
+     * @return the new read position (after the read bytes), -1 if the recording was stopped
+     */
+    public synchronized long read(long position, byte[] buffer, int[] count) throws IOException, InterruptedException {
+        while(running && position >= writePos) {
+            wait();
+        }
+        if(!running || ring == null) return -1;
+        long oldest = getOldestPosition();
+        if(position < oldest) position = oldest;
+
+        int length = (int)Math.min(buffer.length, writePos - position);
+        //don't read across the end of the ring file
+        int offset = (int)(position % capacity);
+        length = (int)Math.min(length, capacity - offset);
+        ring.seek(offset);
+        ring.readFully(buffer, 0, length);
+        count[0] = length;
+        readPos = position + length;
+        return readPos;
+    }
+
+    private synchronized void write(byte[] buffer, int length, int recording) throws IOException {
+        //a replaced recorder (e.g. blocked in a read during stop/start) must not write into the new ring
+        if(ring == null || !isCurrent(recording)) throw new IOException("Recorder was replaced");
+        int done = 0;
+        while(done < length) {
+            int offset = (int)(writePos % capacity);
+            int n = (int)Math.min(length - done, capacity - offset);
+            ring.seek(offset);
+            ring.write(buffer, done, n);
+            done += n;
+            writePos += n;
+        }
+        notifyAll();
+    }
+
+    private void record(String streamUrl, int recording) {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        //the length byte counts 16 byte units
+        byte[] metadata = new byte[255 * 16];
+        long backoff = RECONNECT_MIN_MS;
+        while(isCurrent(recording)) {
+            InputStream in = null;
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(streamUrl).openConnection();
+                //stop() disconnects the connection, which is set here, or this recorder ends now
+                synchronized (this) {
+                    if(!isCurrent(recording)) break;
+                    connection = conn;
+                }
+                conn.setConnectTimeout(10000);
+                conn.setReadTimeout(10000);
+                conn.setRequestProperty("Icy-MetaData", "1");
+                conn.connect();
+                String bitrate = conn.getHeaderField("icy-br");
+                if(bitrate != null) {
+                    try {
+                        synchronized (this) {
+                            if(isCurrent(recording)) bytesPerSec = Integer.parseInt(bitrate.split(",")[0].trim()) * 1000 / 8;
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                //audio bytes between two metadata blocks, 0 if the server doesn't send metadata
+                int metaInt = 0;
+                String icyMetaInt = conn.getHeaderField("icy-metaint");
+                if(icyMetaInt != null) {
+                    try {
+                        metaInt = Integer.parseInt(icyMetaInt.trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+                in = conn.getInputStream();
+                int untilMeta = metaInt;
+                int n;
+                //never read across a metadata block, it must not get into the ring
+                while(isCurrent(recording) && (n = in.read(buffer, 0, metaInt > 0 ? Math.min(buffer.length, untilMeta) : buffer.length)) > 0) {
+                    write(buffer, n, recording);
+                    backoff = RECONNECT_MIN_MS;
+                    if(metaInt > 0 && (untilMeta -= n) == 0) {
+                        readMetadata(in, metadata, recording);
+                        untilMeta = metaInt;
+                    }
+                }
+            } catch (IOException e) {
+                if(isCurrent(recording)) Log.w("TIMESHIFT", "Live stream dropped: " + e.getMessage());
+            } finally {
+                if(in != null) {
+                    try { in.close(); } catch (IOException ignored) { }
+                }
+                synchronized (this) {
+                    if(isCurrent(recording)) connection = null;
+                }
+            }
+            if(!isCurrent(recording)) break;
+            if(reconnectNow) {
+                reconnectNow = false;
+                backoff = RECONNECT_MIN_MS;
+                Thread.interrupted();
+                continue;
+            }
+            //reconnect, the player keeps reading from the buffer in the meantime
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                //stopped or an immediate reconnect was requested
+                reconnectNow = false;
+                continue;
+            }
+            backoff = Math.min(backoff * 2, RECONNECT_MAX_MS);
+        }
+    }
+
+    /** read the metadata block at the current position of the stream, a new StreamTitle is published */
+    private void readMetadata(InputStream in, byte[] metadata, int recording) throws IOException {
+        int length = in.read();
+        if(length < 0) throw new EOFException();
+        length *= 16;
+        int read = 0;
+        while(read < length) {
+            int n = in.read(metadata, read, length - read);
+            if(n < 0) throw new EOFException();
+            read += n;
+        }
+        String title = parseStreamTitle(metadata, length);
+        if(title != null) addStreamTitle(title, recording);
+    }
+
+    /** StreamTitle='...'; of a metadata block (padded with zeros), null if it has none */
+    static String parseStreamTitle(byte[] metadata, int length) {
+        while(length > 0 && metadata[length - 1] == 0) length--;
+        if(length == 0) return null;
+        String text;
+        try {
+            text = new String(metadata, 0, length, "UTF-8");
+            //not UTF-8: older servers send Latin-1
+            if(text.indexOf('\uFFFD') >= 0) text = new String(metadata, 0, length, "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        int start = text.indexOf("StreamTitle='");
+        if(start < 0) return null;
+        start += "StreamTitle='".length();
+        //the title may contain quotes, it ends with ';
+        int end = text.indexOf("';", start);
+        if(end < 0) end = text.lastIndexOf('\'');
+        if(end < start) return null;
+        String title = text.substring(start, end).trim();
+        return title.isEmpty() ? null : title;
+    }
+}
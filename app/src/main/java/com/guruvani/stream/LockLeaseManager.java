@@ -0,0 +1,136 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Reference counted leases on the wake lock & the wifi lock.
+ *
+ * Each user (playback, proxy connection, live recorder) gets its own Lease. A lease is either
+ * held or not, so repeated acquire()/release() calls of one user can't unbalance the locks.
+ * The system lock is held as long as at least one lease on it is held.
+ *
+ * The wifi lock is only leased while data is fetched from the network (origin connections of
+ * the proxy, the live recorder, direct network playback), local playback only needs the wake lock.
+ * The time each lock was held is counted.
+ */
+public class LockLeaseManager {
+    public final static int WAKE = 0;
+    public final static int WIFI = 1;
+
+    private final PowerManager.WakeLock wakeLock;
+    private final WifiManager.WifiLock wifiLock;
+    private final int[] held = new int[2];
+    private final long[] heldSince = new long[2];
+    private final long[] heldTotal = new long[2];
+
+    public LockLeaseManager(Context context) {
+        wakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "StreamWakeLock");
+        wakeLock.setReferenceCounted(false);
+        wifiLock = ((WifiManager) context.getSystemService(Context.WIFI_SERVICE))
+                .createWifiLock(WifiManager.WIFI_MODE_FULL, "StreamWifiLock");
+        wifiLock.setReferenceCounted(false);
+    }
+
+    public Lease newLease(int lock, String holder) {
+        return new Lease(lock, holder);
+    }
+
+    /** time in ms the given lock was held (including the current period) */
+    public synchronized long getHeldMs(int lock) {
+        long total = heldTotal[lock];
+        if(held[lock] > 0) total += SystemClock.elapsedRealtime() - heldSince[lock];
+        return total;
+    }
+
+    public synchronized boolean isHeld(int lock) {
+        return held[lock] > 0;
+    }
+
+    private synchronized void acquire(int lock) {
+        if(held[lock]++ > 0) return;
+        heldSince[lock] = SystemClock.elapsedRealtime();
+        if(lock == WAKE) {
+            wakeLock.acquire();
+        } else {
+            wifiLock.acquire();
+        }
+    }
+
+    private synchronized void release(int lock) {
+        if(held[lock] == 0 || --held[lock] > 0) return;
+        heldTotal[lock] += SystemClock.elapsedRealtime() - heldSince[lock];
+        if(lock == WAKE) {
+            wakeLock.release();
+        } else {
+            wifiLock.release();
+        }
+        Log.d("LOCKS", (lock == WAKE ? "wake" : "wifi") + " lock released, held " + heldTotal[lock] + "ms in total");
+    }
+
+    /** one user's lease on a lock */
+    public class Lease {
+        private final int lock;
+        private final String holder;
+        private boolean isHeld = false;
+
+        private Lease(int lock, String holder) {
+            this.lock = lock;
+            this.holder = holder;
+        }
+
+        public void acquire() {
+            synchronized (LockLeaseManager.this) {
+                if(isHeld) return;
+                isHeld = true;
+                LockLeaseManager.this.acquire(lock);
+            }
+        }
+
+        public void release() {
+            synchronized (LockLeaseManager.this) {
+                if(!isHeld) return;
+                isHeld = false;
+                LockLeaseManager.this.release(lock);
+            }
+        }
+
+        public void set(boolean held) {
+            if(held) {
+                acquire();
+            } else {
+                release();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return holder + (isHeld ? " (held)" : "");
+        }
+    }
+}
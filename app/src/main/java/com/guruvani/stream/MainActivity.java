@@ -23,17 +23,13 @@ package com.guruvani.stream;
 
 import android.app.AlertDialog;
 import android.app.FragmentManager;
-import android.app.Notification;
 import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
-import android.media.AudioManager;
-import android.media.RemoteControlClient;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
@@ -41,15 +37,22 @@ import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ExpandableListView;
+import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.ListView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -59,13 +62,9 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.Timer;
-import java.util.TimerTask;
 
 
 //TODO: playback notifications am lockscreen: https://developer.android.com/guide/topics/ui/notifiers/notifications.html#lockscreenNotification
@@ -76,75 +75,62 @@ public class MainActivity extends AppCompatActivity {
     /** ID for the play notification, unique to differ the notifications for the update **/
     public static int NOTIFICATION_PLAY_ID = 2;
 
-    //create one adapter
+    //one adapter/list for all days (sections)
     ProgramExpandableAdapter adapter;
-    ProgramExpandableAdapter adapter1;
-    ProgramExpandableAdapter adapter2;
-    ProgramExpandableAdapter adapter3;
-    ProgramExpandableAdapter adapter4;
-    ProgramExpandableAdapter adapter5;
-    ProgramExpandableAdapter adapter6;
-    ProgramExpandableAdapter adapter7;
-    ProgramExpandableAdapter adapterOffline;
-    ExpandableListView expandableList;
-    ExpandableListView expandableList1;
-    ExpandableListView expandableList2;
-    ExpandableListView expandableList3;
-    ExpandableListView expandableList4;
-    ExpandableListView expandableList5;
-    ExpandableListView expandableList6;
-    ExpandableListView expandableList7;
-    ExpandableListView expandableListOffline;
+    RecyclerView programList;
+    //applies the fetched lists of a refresh together, in one frame
+    UiPublisher publisher;
 
     //Handler to process all postDelayed operations (timer replacement for Android)
     private Handler handler = new Handler();
 
     MediaService mService;
-    int currentTime;
-    int currentDuration;
 
-    //Timer instance for the remotelist (not working with handler -> NetworkOnMainThread exception)
-    Timer programDataTimer;
+    /** days before today, which are shown (setting) **/
+    private int historyDays;
+    private long refreshIntervalMs;
 
-    //Runnable instance for the seek update: time in the main activity & notification (will be posted to the handler)
-    Runnable mRunnableSeek = new Runnable() {
+    //regular update of the lists, the fetches itself run in own threads (NetworkOnMainThread exception)
+    private final Runnable mRefreshList = new Runnable() {
+        @Override
         public void run() {
-            TimerMethodSeek();
+            refreshProgramLists();
+            handler.postDelayed(this, refreshIntervalMs);
         }
     };
 
-    //Runnable instance for the local list (will be posted to the handler)
-    /*Runnable mRunnableList = new Runnable() {
-        public void run() {
-            TimerMethodList();
+    //Listener for the seek update: time in the main activity & notification (driven by the player events)
+    MediaService.PlaybackListener mPlaybackListener = new MediaService.PlaybackListener() {
+        private String state = MediaService.MEDIA_STATE_IDLE;
+
+        @Override
+        public void onStateChanged(String state, long time, long length) {
+            this.state = state;
+            updatePlayback(state, time, length);
         }
-    };*/
 
+        @Override
+        public void onPositionChanged(long time, long length) {
+            updatePlayback(state, time, length);
+        }
+
+        @Override
+        public void onBuffering(float percent) {
+        }
+    };
 
     private MainFragment dataFragment;
-    private ArrayList<ORFParser.ORFProgram> programListToday;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus1;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus2;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus3;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus4;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus5;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus6;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus7;
-    private ArrayList<ORFParser.ORFProgram> programListOffline;
-    /** boolean flag to show if a notification was already created. If paused, only one notification is issued */
-    boolean isPausedNotified = false;
-
-    /** flag (from the settings) to show if a notification is issued during playback */
-    boolean showPausedNotification = true;
-
-    /** flag (from the settings) to show if a notification is issued if paused */
-    boolean showPlayNotification = true;
-
-    /** flag (from the settings) to show if a notification is issued on the lockscreen */
-    boolean showLockscreenNotification = true;
-
-    /** boolean flag for updating the list: if true, some element of the list was changed -> renew the adapter */
-    //public boolean hasChanged = false;
+    /** program lists of all days, retained in the dataFragment */
+    private ProgramDays programDays;
+    /** formats the progress text, reused for each tick */
+    private final TimeFormatter mTimeFormatter = new TimeFormatter();
+    private DurationProber durationProber;
+    /** the playback updates are only subscribed while the activity is visible */
+    private boolean isVisible = false;
+    private SeekBar seekBar;
+    private TextView textViewTime;
+    private TextView textViewCurrentStream;
+
 
     private ServiceConnection mConnection;
 
@@ -154,6 +140,9 @@ public class MainActivity extends AppCompatActivity {
         Intent mMediaServiceIntent;
 
         setContentView(R.layout.activity_main);
+        seekBar = (SeekBar) findViewById(R.id.seekBar);
+        textViewTime = (TextView) findViewById(R.id.textViewTime);
+        textViewCurrentStream = (TextView) findViewById(R.id.textViewCurrentStream);
 
         // find the retained fragment on activity restarts
         FragmentManager fm = getFragmentManager();
@@ -164,11 +153,13 @@ public class MainActivity extends AppCompatActivity {
             // add the fragment
             dataFragment = new MainFragment();
 
-
             mConnection = new ServiceConnection() {
                 public void onServiceConnected(ComponentName className, IBinder service) {
                     mService = ((LocalBinder<MediaService>) service).getService();
                     dataFragment.setMediaService(mService);
+                    //the connection is retained, the current activity might be a newer one (rotation)
+                    MainActivity current = (MainActivity) dataFragment.getActivity();
+                    if(current != null) current.onMediaServiceConnected(mService);
                 }
 
                 public void onServiceDisconnected(ComponentName className) {
@@ -185,15 +176,6 @@ public class MainActivity extends AppCompatActivity {
             fm.beginTransaction().add(dataFragment, "data").commit();
         } else {
             //Restore everything necessary from the dataFragment (if available)
-            programListToday = dataFragment.getProgramListToday();
-            programListTodayMinus1 = dataFragment.getProgramListTodayMinus1();
-            programListTodayMinus2 = dataFragment.getProgramListTodayMinus2();
-            programListTodayMinus3 = dataFragment.getProgramListTodayMinus3();
-            programListTodayMinus4 = dataFragment.getProgramListTodayMinus4();
-            programListTodayMinus5 = dataFragment.getProgramListTodayMinus5();
-            programListTodayMinus6 = dataFragment.getProgramListTodayMinus6();
-            programListTodayMinus7 = dataFragment.getProgramListTodayMinus7();
-            programListOffline = dataFragment.getProgramListOffline();
             mService = dataFragment.getMediaService();
             mConnection = dataFragment.getMediaConnection();
             mMediaServiceIntent = dataFragment.getMediaServiceIntent();
@@ -211,6 +193,9 @@ public class MainActivity extends AppCompatActivity {
                     public void onServiceConnected(ComponentName className, IBinder service) {
                         mService = ((LocalBinder<MediaService>) service).getService();
                         dataFragment.setMediaService(mService);
+                        //the connection is retained, the current activity might be a newer one (rotation)
+                        MainActivity current = (MainActivity) dataFragment.getActivity();
+                        if(current != null) current.onMediaServiceConnected(mService);
                     }
 
                     public void onServiceDisconnected(ComponentName className) {
@@ -226,57 +211,56 @@ public class MainActivity extends AppCompatActivity {
             if(dataFragment.getTextPlayButton() != null) textViewCurrentStream.setText(dataFragment.getTextPlayButton());
         }
 
-        // Create the Adapter
-        adapter = new ProgramExpandableAdapter(false,true,"");
-        adapter.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapter1 = new ProgramExpandableAdapter(false,false,"");
-        adapter1.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapter2 = new ProgramExpandableAdapter(false,false,"");
-        adapter2.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapter3 = new ProgramExpandableAdapter(false,false,"");
-        adapter3.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapter4 = new ProgramExpandableAdapter(false,false,"");
-        adapter4.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapter5 = new ProgramExpandableAdapter(false,false,"");
-        adapter5.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapter6 = new ProgramExpandableAdapter(false,false,"");
-        adapter6.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapter7 = new ProgramExpandableAdapter(false,false,"");
-        adapter7.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-        adapterOffline = new ProgramExpandableAdapter(true,false,"");
-        adapterOffline.setInflater((LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE), this);
-
-
-        //create expandable list view / set properties
-        expandableList = (ExpandableListView)(findViewById(R.id.expandableProgramList));
-        expandableList.setClickable(true);
-        expandableList1 = (ExpandableListView)(findViewById(R.id.expandableProgramListMinus1));
-        expandableList1.setClickable(true);
-        expandableList2 = (ExpandableListView)(findViewById(R.id.expandableProgramListMinus2));
-        expandableList2.setClickable(true);
-        expandableList3 = (ExpandableListView)(findViewById(R.id.expandableProgramListMinus3));
-        expandableList3.setClickable(true);
-        expandableList4 = (ExpandableListView)(findViewById(R.id.expandableProgramListMinus4));
-        expandableList4.setClickable(true);
-        expandableList5 = (ExpandableListView)(findViewById(R.id.expandableProgramListMinus5));
-        expandableList5.setClickable(true);
-        expandableList6 = (ExpandableListView)(findViewById(R.id.expandableProgramListMinus6));
-        expandableList6.setClickable(true);
-        expandableList7 = (ExpandableListView)(findViewById(R.id.expandableProgramListMinus7));
-        expandableList7.setClickable(true);
-        expandableListOffline = (ExpandableListView)(findViewById(R.id.expandableProgramListOffline));
-        expandableListOffline.setClickable(true);
-
-        // Set the Adapter to expandableList
-        expandableList.setAdapter(adapter);
-        expandableList1.setAdapter(adapter1);
-        expandableList2.setAdapter(adapter2);
-        expandableList3.setAdapter(adapter3);
-        expandableList4.setAdapter(adapter4);
-        expandableList5.setAdapter(adapter5);
-        expandableList6.setAdapter(adapter6);
-        expandableList7.setAdapter(adapter7);
-        expandableListOffline.setAdapter(adapterOffline);
+        //cold start or a fragment restored after the process was killed:
+        //show the last known lists right away, the refresh updates them
+        if(dataFragment.getScheduleSnapshot() == null) {
+            ScheduleSnapshot snapshot = new ScheduleSnapshot(new File(getFilesDir(), "schedule.dat"));
+            snapshot.load(dataFragment.getProgramDays());
+            dataFragment.getProgramDays().addListener(snapshot);
+            dataFragment.setScheduleSnapshot(snapshot);
+        }
+        //the search index is loaded in background, it's updated with every changed list
+        if(dataFragment.getSearchIndex() == null) {
+            ProgramSearchIndex searchIndex = new ProgramSearchIndex(new File(getFilesDir(), "search.idx"));
+            searchIndex.load(dataFragment.getProgramDays());
+            dataFragment.getProgramDays().addListener(searchIndex);
+            dataFragment.setSearchIndex(searchIndex);
+        }
+        if(dataFragment.getDurationProber() == null) dataFragment.setDurationProber(new DurationProber(this, dataFragment.getProgramDays()));
+        durationProber = dataFragment.getDurationProber();
+
+        //the program lists are kept in the dataFragment (empty on the first start)
+        programDays = dataFragment.getProgramDays();
+        //fetches, which are still running from before a runtime change, publish to this activity now.
+        //It's attached before the lists are read: a result, which is set later, is published to it
+        publisher = new UiPublisher(new UiPublisher.Target() {
+            @Override
+            public void apply(int day, String label, ArrayList<ORFParser.ORFProgram> programs) {
+                adapter.setPrograms(day, label, programs);
+                if(day == 0 || day == 1) updateLiveSchedule();
+            }
+        });
+        dataFragment.setPublisher(publisher);
+        publisher.expect(programDays.getLoadingCount());
+
+        // Create the Adapter: one section per day (today, today-1...) & one for the offline programs
+        adapter = new ProgramExpandableAdapter(this, (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE));
+        adapter.attachDurationProber(durationProber);
+        historyDays = readHistoryDays();
+        ProgramDays.Snapshot snapshot = programDays.snapshot();
+        Calendar day = new GregorianCalendar();
+        for(int i = 0; i <= historyDays; i++) {
+            adapter.addSection(i, android.text.format.DateFormat.format("dd.MM.yyyy", day).toString());
+            adapter.setPrograms(i, null, snapshot.get(i));
+            day.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        adapter.addSection(ProgramDays.OFFLINE, "");
+        adapter.setPrograms(ProgramDays.OFFLINE, null, snapshot.get(ProgramDays.OFFLINE));
+
+        //create the list view / set properties
+        programList = (RecyclerView) findViewById(R.id.programList);
+        programList.setLayoutManager(new LinearLayoutManager(this));
+        programList.setAdapter(adapter);
 
 
         Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
@@ -304,8 +288,22 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View v) {
                 mService.onCommand(MediaService.ACTION_PLAY_PAUSE, "");
-                handler.removeCallbacks(mRunnableSeek);
-                handler.postDelayed(mRunnableSeek, 1000);
+            }
+        });
+
+        //add click listeners to the "Previous"/"Next" buttons (queue navigation)
+        ImageButton buttonPrevious = (ImageButton) findViewById(R.id.buttonPrevious);
+        buttonPrevious.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mService.onCommand(MediaService.ACTION_PREVIOUS, "");
+            }
+        });
+        ImageButton buttonNext = (ImageButton) findViewById(R.id.buttonNext);
+        buttonNext.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mService.onCommand(MediaService.ACTION_NEXT, "");
             }
         });
 
@@ -331,16 +329,14 @@ public class MainActivity extends AppCompatActivity {
     }
 
     //listener for list items clicks...
-    public void programClickListener(ORFParser.ORFProgram child) {
+    //the rest of the list is queued, so the following programs are played back to back
+    public void programClickListener(ArrayList<ORFParser.ORFProgram> programs, int position) {
+        ORFParser.ORFProgram child = programs.get(position);
         TextView streamtext = (TextView) findViewById(R.id.textViewCurrentStream);
         streamtext.setText(child.title);
         if(dataFragment != null) dataFragment.setTextPlayButton(child.title);
         Toast.makeText(MainActivity.this, "Play", Toast.LENGTH_SHORT).show();
-        mService.onCommand(MediaService.ACTION_LOAD, child.url);
-
-        //schedule the perdiodic seek time / notification update
-        handler.removeCallbacks(mRunnableSeek);
-        handler.postDelayed(mRunnableSeek, 1000);
+        mService.loadQueue(programs, position);
     }
 
     //listener for list items clicks...
@@ -358,14 +354,8 @@ public class MainActivity extends AppCompatActivity {
                     Toast.makeText(MainActivity.this, "\n" + "Post deleted", Toast.LENGTH_SHORT).show();
                     //Update the list
                     ArrayList<ORFParser.ORFProgram> temp = parser.getProgramsOffline(getBaseContext().getExternalCacheDir());
-                    if(temp != null) {
-                        programListOffline = temp;
-                        dataFragment.setProgramListOffline(temp);
-                    }
-
-                    if(expandableList != null && adapter != null) {
-                        adapterOffline.update(programListOffline);
-                        expandableListOffline.setAdapter(adapterOffline);
+                    if(programDays.set(ProgramDays.OFFLINE, temp)) {
+                        adapter.setPrograms(ProgramDays.OFFLINE, null, temp);
                     }
                 }
             });
@@ -468,19 +458,18 @@ public class MainActivity extends AppCompatActivity {
                             }
                         });
                         //Finally: add the downloaded program to the offline list and update the UI...
-                        child.url = folder + "/" + fileName;
-                        parser.addProgramOffline(child,getBaseContext().getExternalCacheDir());
-                        programListOffline = parser.getProgramsOffline(getBaseContext().getExternalCacheDir());
-
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                if(expandableList != null && adapter != null) {
-                                    adapterOffline.update(programListOffline);
-                                    expandableListOffline.setAdapter(adapterOffline);
-                                }
-                            }
-                        });
+                        //the program of the day list isn't changed, the offline entry is a copy
+                        ORFParser.ORFProgram downloaded = child.withUrl(folder + "/" + fileName);
+                        //scan the file once, so seeks in it are exact
+                        Mp3SeekIndex.buildAsync(new File(downloaded.url));
+                        parser.addProgramOffline(downloaded,getBaseContext().getExternalCacheDir());
+                        final ArrayList<ORFParser.ORFProgram> offline = parser.getProgramsOffline(getBaseContext().getExternalCacheDir());
+                        UiPublisher target = dataFragment.getPublisher();
+                        if(programDays.set(ProgramDays.OFFLINE, offline) && target != null) {
+                            //not part of a refresh, announced on its own so it doesn't count for a running one
+                            target.expect(1);
+                            target.publish(ProgramDays.OFFLINE, null, offline);
+                        }
                     } else {
                         runOnUiThread(new Runnable() {
                             public void run() {
@@ -503,437 +492,225 @@ public class MainActivity extends AppCompatActivity {
     public void onResume() {
         super.onResume();
 
-        //on resume: no delay for the first execution...
-
-        //Schedule the regular (local) list update via the ProgramExpandableAdapter
-        //handler.post(mRunnableList);
+        //the user will likely tap "Live" soon: resolve & connect the hosts in advance
+        NetworkPrewarm.prewarm(ORFParser.ORF_LIVE_URL, ORFParser.ORF_FULL_BASE_URL);
 
+        //the number of days was changed in the settings: rebuild the sections
+        if(readHistoryDays() != historyDays) {
+            recreate();
+            return;
+        }
 
-        //load settings from preferences (interval of the refetch and notification settings)
+        //load settings from preferences (interval of the refetch)
         SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
         int interval = Integer.valueOf(settings.getString(getString(R.string.SETTINGS_REFETCH_INTERVAL), "5"));
-        showPausedNotification = settings.getBoolean(getString(R.string.SETTINGS_SHOW_PAUSED_NOTIFICATION),true);
-        showPlayNotification = settings.getBoolean(getString(R.string.SETTINGS_SHOW_PLAY_NOTIFICATION),true);
-        showLockscreenNotification = settings.getBoolean(getString(R.string.SETTINGS_SHOW_LOCKSCREEN_NOTIFICATION),true);
+        refreshIntervalMs = interval * 60 * 1000L;
 
-        //schedule the regular update of the remote list
-        programDataTimer = new Timer();
-        programDataTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                TimerMethodRemoteList();
-            }
-        }, 0, interval * 60 * 1000);
+        //schedule the regular update of the remote list, on resume: the stale days are fetched right away,
+        //running fetches aren't started again
+        handler.post(mRefreshList);
 
 
-        //Create the regular update timer for the notifications and the progress bar in the GUI
-        handler.removeCallbacks(mRunnableSeek);
-        handler.post(mRunnableSeek);
+        //subscribe to the updates for the progress bar in the GUI
+        isVisible = true;
+        subscribePlayback();
     }
 
-    private void TimerMethodRemoteList() {
-        //fetch all offline programs first
-        ArrayList<ORFParser.ORFProgram> temp;
-        ORFParser parser = new ORFParser();
-        temp = parser.getProgramsOffline(getBaseContext().getExternalCacheDir());
-        if(temp != null) {
-            if (!temp.equals(programListOffline)) {
-                programListOffline = temp;
-                dataFragment.setProgramListOffline(temp);
-                if(expandableList != null && adapter != null) {
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            adapterOffline.update(programListOffline);
-                            expandableListOffline.setAdapter(adapterOffline);
-                        }
-                    });
-                }
-            }
+    /**
+     * Regular update of the lists: the offline list, today & the days, which are expanded or visible.
+     * Only the days, which weren't fetched within the refetch interval, are loaded (a rotation
+     * doesn't refetch all days). The older days are loaded, when they are scrolled into view (see onSectionShown)
+     */
+    private void refreshProgramLists() {
+        LinearLayoutManager layout = (LinearLayoutManager) programList.getLayoutManager();
+        ArrayList<Integer> days = adapter.getActiveDays(layout.findFirstVisibleItemPosition(),
+                layout.findLastVisibleItemPosition());
+        if(!days.contains(0)) days.add(0);
+        days.add(ProgramDays.OFFLINE);
+        for(int i = days.size() - 1; i >= 0; i--) {
+            if(programDays.isFresh(days.get(i), refreshIntervalMs)) days.remove(i);
         }
+        if(!days.isEmpty()) loadDays(days);
+    }
 
-        //post all fetch actions (for each day since today-1week)
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-                temp = parser.getProgramsForDay(today.getTime());
-                if(temp != null && !temp.equals(programListToday)) {
-                    programListToday = temp;
-                    dataFragment.setProgramListToday(temp);
-                    if(expandableList != null && adapter != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                adapter.update(programListToday);
-                                expandableList.setAdapter(adapter);
-                            }
-                        });
-                    }
-                }
-            }
-        }).start();
+    /**
+     * the header of a day was scrolled into view: load it, if it wasn't yet, and the (older) next one.
+     * Running fetches & days, which failed recently, aren't started again (see ProgramDays.startLoading)
+     */
+    void onSectionShown(int day) {
+        if(day == ProgramDays.OFFLINE) return;
+        boolean missing = programDays.get(day) == null;
+        boolean nextMissing = day < historyDays && programDays.get(day + 1) == null;
+        if(!missing && !nextMissing) return;
+        ArrayList<Integer> days = new ArrayList<>(2);
+        if(missing) days.add(day);
+        if(nextMissing) days.add(day + 1);
+        loadDays(days);
+    }
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-
-                today.add(Calendar.DAY_OF_MONTH,-1);
-                temp = parser.getProgramsForDay(today.getTime());
-                if(temp != null && !temp.equals(programListTodayMinus1)) {
-                    programListTodayMinus1 = temp;
-                    dataFragment.setProgramListTodayMinus1(temp);
-                    if(expandableList1 != null && adapter1 != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                android.text.format.DateFormat df = new android.text.format.DateFormat();
-                                Calendar day = new GregorianCalendar();
-                                day.add(Calendar.DAY_OF_MONTH,-1);
-                                adapter1.setDayLabel(df.format("dd.MM.yyyy", day).toString());
-                                adapter1.update(programListTodayMinus1);
-                                expandableList1.setAdapter(adapter1);
-                            }
-                        });
+    /** fetch the days in own threads (days, which are loading already, are skipped) */
+    private void loadDays(ArrayList<Integer> days) {
+        ArrayList<Integer> start = new ArrayList<>(days.size());
+        for(int day : days) {
+            if(programDays.startLoading(day)) start.add(day);
+        }
+        //all results are announced first, so they are published together
+        publisher.expect(start.size());
+        for(final int dayBefore : start) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    //create parser object
+                    ORFParser parser = new ORFParser();
+                    ArrayList<ORFParser.ORFProgram> temp;
+                    String label = null;
+                    if(dayBefore == ProgramDays.OFFLINE) {
+                        temp = parser.getProgramsOffline(getBaseContext().getExternalCacheDir());
+                    } else {
+                        //Create calendar object (today - dayBefore)
+                        Calendar day = new GregorianCalendar();
+                        day.add(Calendar.DAY_OF_MONTH, -dayBefore);
+                        temp = parser.getProgramsForDay(day.getTime());
+                        label = android.text.format.DateFormat.format("dd.MM.yyyy", day).toString();
                     }
-                }
-            }
-        }).start();
-
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-
-                today.add(Calendar.DAY_OF_MONTH,-2);
-                temp = parser.getProgramsForDay(today.getTime());
-                if(temp != null && !temp.equals(programListTodayMinus2)) {
-                    programListTodayMinus2 = temp;
-                    dataFragment.setProgramListTodayMinus2(temp);
-                    if(expandableList2 != null && adapter2 != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                android.text.format.DateFormat df = new android.text.format.DateFormat();
-                                Calendar day = new GregorianCalendar();
-                                day.add(Calendar.DAY_OF_MONTH,-2);
-                                adapter2.setDayLabel(df.format("dd.MM.yyyy", day).toString());
-                                adapter2.update(programListTodayMinus2);
-                                expandableList2.setAdapter(adapter2);
-                            }
-                        });
+                    boolean changed = programDays.set(dayBefore, temp);
+                    programDays.finishLoading(dayBefore, temp != null);
+                    //the activity may have been recreated meanwhile: the current one gets the result
+                    UiPublisher target = dataFragment.getPublisher();
+                    if(target == null) return;
+                    //only changed lists are published to the adapter (which updates the changed rows only)
+                    if(changed) {
+                        target.publish(dayBefore, label, temp);
+                    } else {
+                        target.skip();
                     }
                 }
-            }
-        }).start();
+            }).start();
+        }
+    }
 
-        new Thread(new Runnable() {
+    /** search dialog: the results are updated with every keystroke, a click plays the result (& queues the others) */
+    private void showSearch() {
+        //always set in onCreate()
+        final ProgramSearchIndex searchIndex = dataFragment.getSearchIndex();
+        View view = getLayoutInflater().inflate(R.layout.search_dialog, null);
+        final EditText searchText = (EditText) view.findViewById(R.id.searchText);
+        ListView searchResults = (ListView) view.findViewById(R.id.searchResults);
+        final ArrayAdapter<String> resultAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        final ArrayList<ORFParser.ORFProgram> results = new ArrayList<>();
+        searchResults.setAdapter(resultAdapter);
+
+        final AlertDialog dialog = new AlertDialog.Builder(this)
+                .setTitle("Search")
+                .setView(view)
+                .setNegativeButton("abort", null)
+                .create();
+        searchText.addTextChangedListener(new TextWatcher() {
             @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-
-                today.add(Calendar.DAY_OF_MONTH,-3);
-                temp = parser.getProgramsForDay(today.getTime());
-                if(temp != null && !temp.equals(programListTodayMinus3)) {
-                    programListTodayMinus3 = temp;
-                    dataFragment.setProgramListTodayMinus3(temp);
-                    if(expandableList3 != null && adapter3 != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                android.text.format.DateFormat df = new android.text.format.DateFormat();
-                                Calendar day = new GregorianCalendar();
-                                day.add(Calendar.DAY_OF_MONTH,-3);
-                                adapter3.setDayLabel(df.format("dd.MM.yyyy", day).toString());
-                                adapter3.update(programListTodayMinus3);
-                                expandableList3.setAdapter(adapter3);
-                            }
-                        });
-                    }
-                }
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
             }
-        }).start();
 
-        new Thread(new Runnable() {
             @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-
-                today.add(Calendar.DAY_OF_MONTH,-4);
-                temp = parser.getProgramsForDay(today.getTime());
-                if(temp != null && !temp.equals(programListTodayMinus4)) {
-                    programListTodayMinus4 = temp;
-                    dataFragment.setProgramListTodayMinus4(temp);
-                    if(expandableList4 != null && adapter4 != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                android.text.format.DateFormat df = new android.text.format.DateFormat();
-                                Calendar day = new GregorianCalendar();
-                                day.add(Calendar.DAY_OF_MONTH,-4);
-                                adapter4.setDayLabel(df.format("dd.MM.yyyy", day).toString());
-                                adapter4.update(programListTodayMinus4);
-                                expandableList4.setAdapter(adapter4);
-                            }
-                        });
-                    }
-                }
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
             }
-        }).start();
 
-        new Thread(new Runnable() {
             @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-
-                today.add(Calendar.DAY_OF_MONTH,-5);
-                temp = parser.getProgramsForDay(today.getTime());
-                if(temp != null && !temp.equals(programListTodayMinus5)) {
-                    programListTodayMinus5 = temp;
-                    dataFragment.setProgramListTodayMinus5(temp);
-                    if(expandableList5 != null && adapter5 != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                android.text.format.DateFormat df = new android.text.format.DateFormat();
-                                Calendar day = new GregorianCalendar();
-                                day.add(Calendar.DAY_OF_MONTH,-5);
-                                adapter5.setDayLabel(df.format("dd.MM.yyyy", day).toString());
-                                adapter5.update(programListTodayMinus5);
-                                expandableList5.setAdapter(adapter5);
-                            }
-                        });
-                    }
+            public void afterTextChanged(Editable s) {
+                results.clear();
+                results.addAll(searchIndex.search(s.toString()));
+                resultAdapter.setNotifyOnChange(false);
+                resultAdapter.clear();
+                for(ORFParser.ORFProgram program : results) {
+                    resultAdapter.add((program.dayLabel != null && program.dayLabel.length() > 0 ? program.dayLabel : program.time)
+                            + " - " + program.shortTitle);
                 }
+                resultAdapter.notifyDataSetChanged();
             }
-        }).start();
-
-        new Thread(new Runnable() {
+        });
+        searchResults.setOnItemClickListener(new AdapterView.OnItemClickListener() {
             @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-
-                today.add(Calendar.DAY_OF_MONTH, -6);
-                temp = parser.getProgramsForDay(today.getTime());
-                if (temp != null && !temp.equals(programListTodayMinus6)) {
-                    programListTodayMinus6 = temp;
-                    dataFragment.setProgramListTodayMinus6(temp);
-                    if(expandableList6 != null && adapter6 != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                android.text.format.DateFormat df = new android.text.format.DateFormat();
-                                Calendar day = new GregorianCalendar();
-                                day.add(Calendar.DAY_OF_MONTH,-6);
-                                adapter6.setDayLabel(df.format("dd.MM.yyyy", day).toString());
-                                adapter6.update(programListTodayMinus6);
-                                expandableList6.setAdapter(adapter6);
-                            }
-                        });
-                    }
-                }
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                dialog.dismiss();
+                programClickListener(new ArrayList<>(results), position);
             }
-        }).start();
+        });
+        dialog.show();
+    }
 
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                //Create calendar object (today)
-                Calendar today = new GregorianCalendar();
-                //create parser object
-                ORFParser parser = new ORFParser();
-
-                ArrayList<ORFParser.ORFProgram> temp;
-
-                today.add(Calendar.DAY_OF_MONTH,-7);
-                temp = parser.getProgramsForDay(today.getTime());
-                if(temp != null && !temp.equals(programListTodayMinus7)) {
-                    programListTodayMinus7 = temp;
-                    dataFragment.setProgramListTodayMinus7(temp);
-                    if(expandableList7 != null && adapter7 != null) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                android.text.format.DateFormat df = new android.text.format.DateFormat();
-                                Calendar day = new GregorianCalendar();
-                                day.add(Calendar.DAY_OF_MONTH,-7);
-                                adapter7.setDayLabel(df.format("dd.MM.yyyy", day).toString());
-                                adapter7.update(programListTodayMinus7);
-                                expandableList7.setAdapter(adapter7);
-                            }
-                        });
-                    }
-                }
-            }
-        }).start();
+    /** number of days before today, which are shown */
+    private int readHistoryDays() {
+        SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            int days = Integer.valueOf(settings.getString(getString(R.string.SETTINGS_HISTORY_DAYS),
+                    String.valueOf(ProgramDays.DEFAULT_HISTORY)));
+            return Math.max(0, Math.min(ProgramDays.MAX_HISTORY, days));
+        } catch (NumberFormatException e) {
+            return ProgramDays.DEFAULT_HISTORY;
+        }
     }
 
-    private void TimerMethodSeek() {
+    /**
+     * Update the time/seekbar in the GUI.
+     * Called by the playback listener of the media service (on state changes and once per second while visible),
+     * the notification is handled by the service itself.
+     *
+     * Nothing is allocated here, if the displayed text didn't change (see TimeFormatter)
+     */
+    private void updatePlayback(String state, long time, long length) {
         if(mService != null) {
-            Intent notificationIntent = new Intent(getApplicationContext(), MainActivity.class)
-                    .setFlags(Intent.FLAG_ACTIVITY_PREVIOUS_IS_TOP);
-            //.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
-            PendingIntent contentIntent = PendingIntent.getActivity(getApplicationContext(), 0, notificationIntent, 0);
-
-            NotificationCompat.Builder mNotifyBuilder = new NotificationCompat.Builder(getBaseContext())
-                    .setContentTitle("01 - Guru Vani Stream")
-                    .setSmallIcon(R.drawable.notification_play).setContentIntent(contentIntent);
-            NotificationManager mNotificationManager =
-                    (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-            Notification mNotification;
-            //mNotifyBuilder.setLatestEventInfo(getApplicationContext(), from, message, contentIntent);
-            SimpleDateFormat formatter = new SimpleDateFormat("mm:ss");
-            int timeStamp = mService.getCurrentPosition();
-            String dateString;
-
-            switch(timeStamp) {
-                //stopped/preparing... -> time: 0
-                case -1:
-                    dateString = formatter.format(new Date(0));
-                    break;
-                //pause: no change...
-                case -2:
-                    dateString = formatter.format(new Date(currentTime));
-                    break;
-                //Playing...
-                default:
-                    dateString = formatter.format(new Date(timeStamp));
-                    currentTime = timeStamp;
-                    break;
-            }
-            //add the separator
-            dateString += "/";
-
-            timeStamp = mService.getDuration();
-            switch(timeStamp) {
-                case -1:
-                    dateString += "00:00";
-                    break;
-                case -2:
-                    dateString += formatter.format(new Date(currentDuration));
-                    break;
-                default:
-                    dateString += formatter.format(new Date(timeStamp));
-                    currentDuration = timeStamp;
-                    break;
-            }
+            boolean textChanged = mTimeFormatter.format(state, time, length);
 
-            SeekBar seekbar = (SeekBar) findViewById(R.id.seekBar);
-            if(!mService.isLive()) {
-                try {
-                    seekbar.setProgress((int) (((float) currentTime / (float) currentDuration) * 1000));
-                } catch (ArithmeticException e) {
-                    Log.d("GURUVANISTREAM","Progressbar: Div by 0");
-                }
+            if(mService.isSeekable() && length > 0) {
+                seekBar.setProgress((int) (((float) time / (float) length) * 1000));
             } else {
-                seekbar.setProgress(0);
+                seekBar.setProgress(0);
             }
 
-            //set the corresponding notification
-            switch(timeStamp) {
-                case -1:
-                    //cancel() if the playback is stopped
-                    mService.stopForeground(true);
-                    mNotificationManager.cancel(MainActivity.NOTIFICATION_PLAY_ID);
-                    isPausedNotified = false;
-                    Log.i("NOTE","STOPPED -> cancel");
-                    handler.removeCallbacks(mRunnableSeek);
-                    break;
-                case -2:
-                    mService.stopForeground(true);
-                    //if paused && not notified already (done only once)
-                    if(!isPausedNotified && showPausedNotification) {
-                        isPausedNotified = true;
-                        mNotifyBuilder.setContentText("Pause: " + dateString);
-                        mNotification = mNotifyBuilder.build();
-                        mNotificationManager.notify(
-                                MainActivity.NOTIFICATION_PLAY_ID, mNotification);
-                        Log.i("NOTE", "PAUSED -> new notification");
-                    }
-                    if(!showPausedNotification) mNotificationManager.cancel(MainActivity.NOTIFICATION_PLAY_ID);
-                    handler.removeCallbacks(mRunnableSeek);
-                    Log.i("NOTE","PAUSED -> already notified");
-                    break;
-                default:
-                    //if the playback is active, display the current time
-                    mNotifyBuilder.setContentText("Play: " + dateString);
-                    if(showPlayNotification) {
-                        mNotification = mNotifyBuilder.build();
-                        isPausedNotified = false;
-                        Log.i("NOTE", "PLAY -> update...");
-                        mService.startForeground(MainActivity.NOTIFICATION_PLAY_ID, mNotification);
-                    }
-                    if(showLockscreenNotification) {
-                        drawLockScrenNotification(this);
-                    }
-                    handler.postDelayed(mRunnableSeek, 1000);
-                    break;
+            //Update the time in the text view (GUI, bottom right)
+            if(textChanged) {
+                textViewTime.setText(mTimeFormatter.getText(), 0, mTimeFormatter.getTextLength());
             }
 
-            //Update the time in the text view (GUI, bottom right)
-            TextView time = (TextView)findViewById(R.id.textViewTime);
-            time.setText(dateString);
+            //the queue may have advanced to the next program
+            String title = mService.getCurrentTitle();
+            if(title != null && dataFragment != null && !title.equals(dataFragment.getTextPlayButton())) {
+                dataFragment.setTextPlayButton(title);
+                textViewCurrentStream.setText(title);
+            }
         }
     }
 
+    /** durations of the remote programs, probed on demand (see ProgramExpandableAdapter) */
+    DurationProber getDurationProber() {
+        return durationProber;
+    }
+
+    void onMediaServiceConnected(MediaService service) {
+        mService = service;
+        updateLiveSchedule();
+        subscribePlayback();
+    }
 
-    /** update the list view, the data is fetched in the other timer method */
-    /*private void TimerMethodList() {
-        adapter.update(programListToday, programListTodayMinus1,
-                programListTodayMinus2, programListTodayMinus3,
-                programListTodayMinus4, programListTodayMinus5,
-                programListTodayMinus6, programListTodayMinus7,
-                programListOffline);
-        if(expandableList != null && adapter != null && hasChanged) {
-            expandableList.setAdapter(adapter);
-            hasChanged = false;
+    /** the service shows the current live program, it gets the schedule of today & yesterday */
+    private void updateLiveSchedule() {
+        if(mService != null) mService.setLiveSchedule(LiveSchedule.build(programDays.snapshot()));
+    }
+
+    /** subscribe to the playback events of the service (if it's already bound & the activity is visible) */
+    private void subscribePlayback() {
+        if(mService != null && isVisible) {
+            mService.addPlaybackListener(mPlaybackListener, 1000);
         }
-        //re-schedule this runnable...
-        handler.postDelayed(mRunnableList,2000);
-    }*/
+    }
 
     @Override
     public void onPause() {
         super.onPause();
+        //no UI updates in background, the service reduces its notification rate
+        isVisible = false;
+        if(mService != null) mService.removePlaybackListener(mPlaybackListener);
         //Stop the regular list update
-        programDataTimer.cancel();
-        //handler.removeCallbacks(mRunnableList);
+        handler.removeCallbacks(mRefreshList);
     }
 
     @Override
@@ -947,6 +724,8 @@ public class MainActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         unbindService(mConnection);
+        if(dataFragment.getPublisher() == publisher) dataFragment.setPublisher(null);
+        adapter.detachDurationProber(durationProber);
     }
 
     /**
@@ -965,48 +744,12 @@ public class MainActivity extends AppCompatActivity {
                 Intent intent = new Intent(this, SettingsActivity.class);
                 startActivity(intent);
                 return true;
+            case R.id.action_search:
+                showSearch();
+                return true;
             default:
                 break;
         }
         return super.onOptionsItemSelected(item);
     }
-
-    public void drawLockScrenNotification (Context context){
-        /*// Creates an Intent for the Activity
-        Intent notifyIntent = new Intent(this, MainActivity.class);
-        // Sets the Activity to start in a new, empty task
-        notifyIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
-            | Intent.FLAG_ACTIVITY_CLEAR_TASK);
-        // Creates the PendingIntent
-        PendingIntent pausePendingIntent =
-                PendingIntent.getActivity(this,0,notifyIntent,
-                        PendingIntent.FLAG_UPDATE_CURRENT
-                );
-
-
-        Notification notification = new Notification.Builder(context)
-                // Show controls on lock screen even when user hides sensitive content.
-                .setVisibility(Notification.VISIBILITY_PUBLIC)
-                .setSmallIcon(R.drawable.notification_play)
-                // Add media control buttons that invoke intents in your media service
-                .addAction(R.drawable.ic_av_pause_circle_outline, "Pause", pausePendingIntent)  // #1
-                // Apply the media style template
-                .setStyle(new Notification.MediaStyle()
-                        .setShowActionsInCompactView(0))
-                .build();
-                                //.setLargeIcon(albumArtBitmap)
-                                //.setMediaSession(mMediaSession.getSessionToken())*/
-        ComponentName myEventReceiver = new ComponentName(getPackageName(), MainActivity.class.getName());
-        AudioManager myAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        myAudioManager.registerMediaButtonEventReceiver(myEventReceiver);
-       // myAudioManager.setMediaButtonReceiver(myEventReceiver);
-        // build the PendingIntent for the remote control client
-        Intent mediaButtonIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
-        mediaButtonIntent.setComponent(myEventReceiver);
-        PendingIntent mediaPendingIntent = PendingIntent.getBroadcast(getApplicationContext(), 0, mediaButtonIntent, 0);
-        // create and register the remote control client
-        RemoteControlClient myRemoteControlClient = new RemoteControlClient(mediaPendingIntent);
-        myAudioManager.registerRemoteControlClient(myRemoteControlClient);
-    }
 }
-
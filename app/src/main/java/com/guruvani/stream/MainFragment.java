@@ -25,9 +25,6 @@ import android.app.Fragment;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.widget.ExpandableListView;
-
-import java.util.ArrayList;
 
 /**
  * Basic fragment to store all information, even on runtime changes (resize/orientation change)
@@ -39,20 +36,17 @@ public class MainFragment extends Fragment {
         // Required empty public constructor
     }
 
-    private ArrayList<ORFParser.ORFProgram> programListToday;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus1;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus2;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus3;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus4;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus5;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus6;
-    private ArrayList<ORFParser.ORFProgram> programListTodayMinus7;
-    private ArrayList<ORFParser.ORFProgram> programListOffline;
+    /** program lists of all days, survives the runtime changes **/
+    private final ProgramDays programDays = new ProgramDays();
+    private ScheduleSnapshot scheduleSnapshot;
+    private ProgramSearchIndex searchIndex;
+    //the running probes & failed URLs survive runtime changes
+    private DurationProber durationProber;
+    //publisher of the current activity, the running fetches publish their results to it
+    private volatile UiPublisher publisher;
     private MediaService mService;
     private ServiceConnection mConnection;
     private Intent mServiceIntent;
-    private ProgramExpandableAdapter adapter;
-    private ExpandableListView expandableList;
 
     private String textPlayButton;
 
@@ -65,77 +59,56 @@ public class MainFragment extends Fragment {
         setRetainInstance(true);
     }
 
-
-    public ArrayList<ORFParser.ORFProgram> getProgramListToday() {
-        return programListToday;
-    }
-
-    public void setProgramListToday(ArrayList<ORFParser.ORFProgram> programListToday) {
-        this.programListToday = programListToday;
-    }
-
-    public ArrayList<ORFParser.ORFProgram> getProgramListTodayMinus1() {
-        return programListTodayMinus1;
-    }
-
-    public void setProgramListTodayMinus1(ArrayList<ORFParser.ORFProgram> programListTodayMinus1) {
-        this.programListTodayMinus1 = programListTodayMinus1;
-    }
-
-    public ArrayList<ORFParser.ORFProgram> getProgramListTodayMinus2() {
-        return programListTodayMinus2;
-    }
-
-    public void setProgramListTodayMinus2(ArrayList<ORFParser.ORFProgram> programListTodayMinus2) {
-        this.programListTodayMinus2 = programListTodayMinus2;
-    }
-
-    public ArrayList<ORFParser.ORFProgram> getProgramListTodayMinus3() {
-        return programListTodayMinus3;
+    //the retained data is dropped (not called on runtime changes): write the pending snapshot/index changes
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if(scheduleSnapshot != null) {
+            programDays.removeListener(scheduleSnapshot);
+            scheduleSnapshot.close();
+        }
+        if(searchIndex != null) {
+            programDays.removeListener(searchIndex);
+            searchIndex.close();
+        }
+        if(durationProber != null) durationProber.close();
     }
 
-    public void setProgramListTodayMinus3(ArrayList<ORFParser.ORFProgram> programListTodayMinus3) {
-        this.programListTodayMinus3 = programListTodayMinus3;
-    }
 
-    public ArrayList<ORFParser.ORFProgram> getProgramListTodayMinus4() {
-        return programListTodayMinus4;
+    public ProgramDays getProgramDays() {
+        return programDays;
     }
 
-    public void setProgramListTodayMinus4(ArrayList<ORFParser.ORFProgram> programListTodayMinus4) {
-        this.programListTodayMinus4 = programListTodayMinus4;
+    public ScheduleSnapshot getScheduleSnapshot() {
+        return scheduleSnapshot;
     }
 
-    public ArrayList<ORFParser.ORFProgram> getProgramListTodayMinus5() {
-        return programListTodayMinus5;
+    public void setScheduleSnapshot(ScheduleSnapshot scheduleSnapshot) {
+        this.scheduleSnapshot = scheduleSnapshot;
     }
 
-    public void setProgramListTodayMinus5(ArrayList<ORFParser.ORFProgram> programListTodayMinus5) {
-        this.programListTodayMinus5 = programListTodayMinus5;
+    public ProgramSearchIndex getSearchIndex() {
+        return searchIndex;
     }
 
-    public ArrayList<ORFParser.ORFProgram> getProgramListTodayMinus6() {
-        return programListTodayMinus6;
+    public void setSearchIndex(ProgramSearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
     }
 
-    public void setProgramListTodayMinus6(ArrayList<ORFParser.ORFProgram> programListTodayMinus6) {
-        this.programListTodayMinus6 = programListTodayMinus6;
+    public DurationProber getDurationProber() {
+        return durationProber;
     }
 
-    public ArrayList<ORFParser.ORFProgram> getProgramListTodayMinus7() {
-        return programListTodayMinus7;
+    public void setDurationProber(DurationProber durationProber) {
+        this.durationProber = durationProber;
     }
 
-    public void setProgramListTodayMinus7(ArrayList<ORFParser.ORFProgram> programListTodayMinus7) {
-        this.programListTodayMinus7 = programListTodayMinus7;
+    public UiPublisher getPublisher() {
+        return publisher;
     }
 
-    public ArrayList<ORFParser.ORFProgram> getProgramListOffline() {
-        return programListOffline;
-    }
-
-    public void setProgramListOffline(ArrayList<ORFParser.ORFProgram> programListOffline) {
-        this.programListOffline = programListOffline;
+    public void setPublisher(UiPublisher publisher) {
+        this.publisher = publisher;
     }
 
     public MediaService getMediaService() {
@@ -162,14 +135,6 @@ public class MainFragment extends Fragment {
         this.mServiceIntent = mServiceIntent;
     }
 
-    public void setExpandableList(ExpandableListView expandableList) {
-        this.expandableList = expandableList;
-    }
-
-    public void setAdapter(ProgramExpandableAdapter adapter) {
-        this.adapter = adapter;
-    }
-
     public String getTextPlayButton() {
         return textPlayButton;
     }
@@ -177,12 +142,4 @@ public class MainFragment extends Fragment {
     public void setTextPlayButton(String textPlayButton) {
         this.textPlayButton = textPlayButton;
     }
-
-    public ProgramExpandableAdapter getAdapter() {
-        return adapter;
-    }
-
-    public ExpandableListView getExpandableList() {
-        return expandableList;
-    }
 }
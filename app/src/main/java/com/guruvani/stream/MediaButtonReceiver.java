@@ -0,0 +1,65 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.view.KeyEvent;
+
+/**
+ * Receives the media buttons (headset, lockscreen) and forwards them as commands to the MediaService
+ */
+public class MediaButtonReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if(!Intent.ACTION_MEDIA_BUTTON.equals(intent.getAction())) return;
+        KeyEvent event = intent.getParcelableExtra(Intent.EXTRA_KEY_EVENT);
+        if(event == null || event.getAction() != KeyEvent.ACTION_DOWN || event.getRepeatCount() > 0) return;
+
+        String command;
+        switch(event.getKeyCode()) {
+            case KeyEvent.KEYCODE_HEADSETHOOK:
+            case KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE:
+                command = MediaService.ACTION_PLAY_PAUSE;
+                break;
+            case KeyEvent.KEYCODE_MEDIA_PLAY:
+                command = MediaService.ACTION_PLAY;
+                break;
+            case KeyEvent.KEYCODE_MEDIA_PAUSE:
+                command = MediaService.ACTION_PAUSE;
+                break;
+            case KeyEvent.KEYCODE_MEDIA_STOP:
+                command = MediaService.ACTION_STOP;
+                break;
+            case KeyEvent.KEYCODE_MEDIA_NEXT:
+                command = MediaService.ACTION_NEXT;
+                break;
+            case KeyEvent.KEYCODE_MEDIA_PREVIOUS:
+                command = MediaService.ACTION_PREVIOUS;
+                break;
+            default:
+                return;
+        }
+        context.startService(new Intent(context, MediaService.class).setAction(command));
+    }
+}
@@ -22,12 +22,14 @@
 package com.guruvani.stream;
 
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.media.AudioManager;
 import android.net.Uri;
-import android.net.wifi.WifiManager;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
@@ -38,6 +40,8 @@ import org.videolan.libvlc.LibVLC;
 import org.videolan.libvlc.Media;
 import org.videolan.libvlc.MediaPlayer;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 
@@ -49,7 +53,7 @@ import java.util.ArrayList;
  *
  * Via start/stopForeground the service can be brought to foreground, enabling a jitter free playback
  *
- * In some occasions there might be a problem with the wifi/wakelocks. Should be investigated sometime.
+ * The wifi/wakelocks are held via leases of the LockLeaseManager (see there).
  */
 public class MediaService extends Service implements IVLCVout.Callback, LibVLC.HardwareAccelerationError {
     public final static String ACTION_PLAY_PAUSE = "com.guruvani.stream.action.PLAYPAUSE";
@@ -58,28 +62,208 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
     public final static String ACTION_STOP = "com.guruvani.stream.action.STOP";
     public final static String ACTION_SETTIME = "com.guruvani.stream.action.SETTIME";
     public final static String ACTION_LOAD = "com.guruvani.stream.action.LOAD";
+    public final static String ACTION_NEXT = "com.guruvani.stream.action.NEXT";
+    public final static String ACTION_PREVIOUS = "com.guruvani.stream.action.PREVIOUS";
 
     public final static String MEDIA_STATE_IDLE = "com.guruvani.stream.mediastate.IDLE";
     public final static String MEDIA_STATE_PLAYING = "com.guruvani.stream.mediastate.PLAYING";
     public final static String MEDIA_STATE_PAUSED = "com.guruvani.stream.mediastate.PAUSED";
 
+    /** maximum size of the on-disk range cache for the on-demand programs **/
+    public final static long PROXY_CACHE_SIZE = 200L * 1024 * 1024;
+    /** remaining time of the current queue item, when the next one is pre-buffered **/
+    public final static int PREBUFFER_BEFORE_END_MS = 30000;
+    /** amount of the next queue item, which is fetched in advance **/
+    public final static int PREBUFFER_BYTES = 512 * 1024;
+    /** size of the live time-shift ring on disk (about 30 minutes at 128kbit/s) **/
+    public final static long LIVE_TIMESHIFT_BYTES = 30L * 1024 * 1024;
+    /** notification update interval, if a UI is attached / if no UI is visible **/
+    public final static long NOTIFICATION_INTERVAL_UI_MS = 1000;
+    public final static long NOTIFICATION_INTERVAL_BACKGROUND_MS = 60000;
+    /** saved positions near the start/end of a program are not restored **/
+    public final static long RESUME_MIN_MS = 5000;
+    public final static long RESUME_END_MARGIN_MS = 10000;
+
     private MediaPlayer mMediaPlayer = null;
     private LibVLC libvlc;
     private String mState = MEDIA_STATE_IDLE;
     private String mStatePrevious = MEDIA_STATE_IDLE;
     private MediaPlayer.EventListener mPlayerListener = new MyPlayerListener(this);
-    private WifiManager.WifiLock wifiLock;
-    private PowerManager.WakeLock wakeLock;
+    private LockLeaseManager mLocks;
+    //the wake lock is leased while playing, the wifi lock only for direct (not proxied) network playback
+    private LockLeaseManager.Lease mWakeLease;
+    private LockLeaseManager.Lease mWifiLease;
+    private boolean mDirectNetwork = false;
     private boolean isLive = false;
+    private StreamProxy mProxy;
+    private LiveTimeshift mTimeshift;
+    //ring position, where the next live playback starts (-1: near the live position)
+    private long mLiveStartPosition = -1;
+    private int mLiveCachingMs = 0;
+    //the recording was stopped during a long pause, playing starts at the live position again
+    private boolean mLiveRecordingDropped = false;
+    private LiveSupervisor mLiveSupervisor;
+    private ResumeStore mResumeStore;
+    //URL of the loaded item & the position, which is restored as soon as it plays
+    private volatile String mCurrentUrl;
+    //resume key of the loaded item: an offline copy uses the key of its program (see ResumeStore.keyOf)
+    private String mResumeKey;
+    private long mPendingResume = 0;
+    //time -> byte offset index of the loaded local file, null until it is loaded (or if there is none)
+    private volatile Mp3SeekIndex mSeekIndex;
+    private BufferPolicy mBufferPolicy;
+    private RemoteControlSession mSession;
+    //the lockscreen controls are only shown for the app, which holds the audio focus
+    private AudioManager mAudioManager;
+    private boolean mResumeOnFocusGain = false;
+    private final AudioManager.OnAudioFocusChangeListener mFocusListener = new AudioManager.OnAudioFocusChangeListener() {
+        @Override
+        public void onAudioFocusChange(int focusChange) {
+            switch(focusChange) {
+                case AudioManager.AUDIOFOCUS_LOSS:
+                    //another player took over: paused until the user plays again
+                    mResumeOnFocusGain = false;
+                    onCommand(ACTION_PAUSE, "");
+                    mAudioManager.abandonAudioFocus(this);
+                    break;
+                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                    //spoken content isn't ducked, it's paused & resumed afterwards
+                    if(mState.equals(MEDIA_STATE_PLAYING)) mResumeOnFocusGain = true;
+                    onCommand(ACTION_PAUSE, "");
+                    break;
+                case AudioManager.AUDIOFOCUS_GAIN:
+                    if(mResumeOnFocusGain) onCommand(ACTION_PLAY, "");
+                    mResumeOnFocusGain = false;
+                    break;
+            }
+        }
+    };
+    private String mSessionTitle;
+    //schedule of today/yesterday for the title of the live program, set by the UI
+    private LiveSchedule mLiveSchedule;
+    private final Handler mHandler = new Handler();
+    //runs exactly at the start of the next live program
+    private final Runnable mLiveTitleUpdate = new Runnable() {
+        @Override
+        public void run() {
+            updateLiveTitle();
+        }
+    };
+    //runs when a StreamTitle of the live stream becomes audible
+    private final Runnable mStreamTitleUpdate = new Runnable() {
+        @Override
+        public void run() {
+            updateLiveTitle();
+        }
+    };
+    //a paused live stream is recorded until the ring is full once, later the paused position is overwritten anyway
+    private final Runnable mStopPausedRecording = new Runnable() {
+        @Override
+        public void run() {
+            if(!mState.equals(MEDIA_STATE_PAUSED) || !isTimeshifted()) return;
+            Log.i("STREAM", "Live paused longer than the ring window, recording stopped");
+            mTimeshift.stop();
+            mLiveRecordingDropped = true;
+        }
+    };
+    //stall detection: buffering after the playback has started
+    private boolean mPlayingStarted = false;
+    private boolean mInStall = false;
+    private long mLoadStartTime = 0;
+    private final PlaybackQueue mQueue = new PlaybackQueue();
+    //resolved URL (offline file or remote) of the next queue item, set by prepareNext()
+    private volatile String mNextUrl;
+    private volatile int mNextIndex = -1;
+    private boolean mNextPrepared = false;
+    //current position & length (ms), updated by the VLC events
+    private long mTime = 0;
+    private long mLength = 0;
+    private final ArrayList<ListenerRecord> mPlaybackListeners = new ArrayList<>();
+    //the play notification is owned by the service, it's updated by its own playback listener
+    private PlaybackTicker mTicker;
+    private ListenerRecord mNotificationRecord;
+    private final PlaybackListener mNotificationListener = new PlaybackListener() {
+        @Override
+        public void onStateChanged(String state, long time, long length) {
+            updateNotification(state, time, length);
+        }
+
+        @Override
+        public void onPositionChanged(long time, long length) {
+            updateNotification(mState, time, length);
+        }
+
+        @Override
+        public void onBuffering(float percent) {
+        }
+    };
     PhoneStateListener phoneStateListener;
+    //notification settings, read once & updated by the listener (not on every tick)
+    private boolean mShowPlayNotification = true;
+    private boolean mShowPausedNotification = true;
+    private SharedPreferences mSettings;
+    private final SharedPreferences.OnSharedPreferenceChangeListener mSettingsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences settings, String key) {
+            readNotificationSettings();
+        }
+    };
 
     @Override
-    public IBinder onBind(Intent intent) {
-        wifiLock = ((WifiManager) getSystemService(Context.WIFI_SERVICE))
-                .createWifiLock(WifiManager.WIFI_MODE_FULL, "StreamWifiLock");
-        wakeLock = ((PowerManager) getSystemService(Context.POWER_SERVICE))
-                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK | PowerManager.ON_AFTER_RELEASE, "StreamWakeLock");
+    public void onCreate() {
+        super.onCreate();
+        mBufferPolicy = new BufferPolicy(this);
+        mLocks = new LockLeaseManager(this);
+        mResumeStore = new ResumeStore(new File(getFilesDir(), "resume.dat"));
+        mWakeLease = mLocks.newLease(LockLeaseManager.WAKE, "playback");
+        mWifiLease = mLocks.newLease(LockLeaseManager.WIFI, "playback");
+        mSession = new RemoteControlSession(this);
+        mAudioManager = (AudioManager) getSystemService(AUDIO_SERVICE);
+        mTicker = new PlaybackTicker(this);
+        mSettings = PreferenceManager.getDefaultSharedPreferences(this);
+        readNotificationSettings();
+        mSettings.registerOnSharedPreferenceChangeListener(mSettingsListener);
+        mNotificationRecord = new ListenerRecord(mNotificationListener, NOTIFICATION_INTERVAL_BACKGROUND_MS);
+        mPlaybackListeners.add(mNotificationRecord);
+        //start the local caching proxy for the on-demand programs
+        mProxy = new StreamProxy(new RangeCache(new File(getCacheDir(), "streamcache"), PROXY_CACHE_SIZE));
+        mProxy.setBufferPolicy(mBufferPolicy);
+        mProxy.setLocks(mLocks);
+        //the live stream is recorded into a ring, so it can be paused & rewound
+        mTimeshift = new LiveTimeshift(new File(getCacheDir(), "timeshift.ring"), LIVE_TIMESHIFT_BYTES);
+        mTimeshift.setLocks(mLocks);
+        mTimeshift.setMetadataListener(new LiveTimeshift.MetadataListener() {
+            @Override
+            public void onStreamTitle(String title, final long position) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onStreamTitleRecorded(position);
+                    }
+                });
+            }
+        });
+        mProxy.setTimeshift(mTimeshift);
+        mLiveSupervisor = new LiveSupervisor(new LiveSupervisor.Callback() {
+            @Override
+            public void onReconnect() {
+                reconnectLive();
+            }
+        });
+        try {
+            mProxy.start();
+        } catch (IOException e) {
+            Log.e("STREAM", "Error starting proxy: " + e.getMessage());
+        }
+        //warm up the player, so a load only has to swap the media
+        initPlayer();
+        NetworkPrewarm.prewarm(ORFParser.ORF_LIVE_URL);
+    }
 
+    @Override
+    public IBinder onBind(Intent intent) {
         phoneStateListener = new PhoneStateListener() {
             @Override
             public void onCallStateChanged(int state, String incomingNumber) {
@@ -100,16 +284,30 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
     }
 
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        //commands from the media buttons (see MediaButtonReceiver), only if there is a player session
+        if(intent != null && intent.getAction() != null && phoneStateListener != null) {
+            onCommand(intent.getAction(), "");
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     public boolean onCommand(String command, String parameter) {
         TelephonyManager mgr;
         switch(command) {
             case ACTION_PLAY_PAUSE:
                 switch(mState) {
                     case MEDIA_STATE_PAUSED:
-                        wifiLock.acquire();
-                        wakeLock.acquire();
+                        if(!requestAudioFocus()) break;
+                        if(mLiveRecordingDropped) {
+                            load(ORFParser.ORF_LIVE_URL);
+                            break;
+                        }
+                        setPlaybackLeases(true);
+                        //the state changes with the Playing event
                         mMediaPlayer.play();
-                        mState = MEDIA_STATE_PLAYING;
+                        mLiveSupervisor.setPaused(false);
 
                         mgr = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
                         if(mgr != null) {
@@ -118,9 +316,10 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
                         break;
                     case MEDIA_STATE_PLAYING:
                         mMediaPlayer.pause();
-                        mState = MEDIA_STATE_PAUSED;
-                        wifiLock.release();
-                        wakeLock.release();
+                        mLiveSupervisor.setPaused(true);
+                        setState(MEDIA_STATE_PAUSED);
+                        //a paused live stream is still recorded (up to the ring window), the recorder holds its own leases
+                        setPlaybackLeases(false);
 
                         mgr = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
                         if(mgr != null) {
@@ -133,9 +332,10 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
                 switch(mState) {
                     case MEDIA_STATE_PLAYING:
                         mMediaPlayer.pause();
-                        mState = MEDIA_STATE_PAUSED;
-                        wifiLock.release();
-                        wakeLock.release();
+                        mLiveSupervisor.setPaused(true);
+                        setState(MEDIA_STATE_PAUSED);
+                        //a paused live stream is still recorded (up to the ring window), the recorder holds its own leases
+                        setPlaybackLeases(false);
 
                         mgr = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
                         if(mgr != null) {
@@ -147,10 +347,15 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
             case ACTION_PLAY:
                 switch(mState) {
                     case MEDIA_STATE_PAUSED:
-                        wifiLock.acquire();
-                        wakeLock.acquire();
+                        if(!requestAudioFocus()) break;
+                        if(mLiveRecordingDropped) {
+                            load(ORFParser.ORF_LIVE_URL);
+                            break;
+                        }
+                        setPlaybackLeases(true);
+                        //the state changes with the Playing event
                         mMediaPlayer.play();
-                        mState = MEDIA_STATE_PLAYING;
+                        mLiveSupervisor.setPaused(false);
 
                         mgr = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
                         if(mgr != null) {
@@ -161,12 +366,19 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
                 break;
             case ACTION_STOP:
                 switch(mState) {
+                    case MEDIA_STATE_IDLE:
+                        //a load, which doesn't play yet, is stopped as well
+                        if(!isLoading()) break;
                     case MEDIA_STATE_PAUSED:
                     case MEDIA_STATE_PLAYING:
                         mMediaPlayer.stop();
-                        mState = MEDIA_STATE_IDLE;
-                        wifiLock.release();
-                        wakeLock.release();
+                        mLiveSupervisor.stop();
+                        mTimeshift.stop();
+                        setState(MEDIA_STATE_IDLE);
+                        mResumeOnFocusGain = false;
+                        mAudioManager.abandonAudioFocus(mFocusListener);
+                        mBufferPolicy.endSession();
+                        setPlaybackLeases(false);
 
                         mgr = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
                         if(mgr != null) {
@@ -176,21 +388,38 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
                 }
                 break;
             case ACTION_LOAD:
-                    isLive = parameter.equals(ORFParser.ORF_LIVE_URL);
-                    createPlayer(parameter);
-                    wifiLock.acquire();
-                    wakeLock.acquire();
-                    mState = MEDIA_STATE_PLAYING;
-
-                    mgr = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
-                    if(mgr != null) {
-                        mgr.listen(phoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
-                    }
+                //a single program or the live stream, no queue
+                mQueue.clear();
+                load(parameter);
+                break;
+            case ACTION_NEXT:
+                ORFParser.ORFProgram next = mQueue.moveToNext();
+                if(next != null) {
+                    //use the pre-resolved URL (offline file), if it belongs to this item
+                    String url = (mNextUrl != null && mNextIndex == mQueue.getIndex()) ? mNextUrl : next.url;
+                    load(url);
+                }
+                break;
+            case ACTION_PREVIOUS:
+                ORFParser.ORFProgram previous = mQueue.moveToPrevious();
+                if(previous != null) {
+                    load(previous.url);
+                }
                 break;
             case ACTION_SETTIME:
                 //float position = Float.valueOf(parameter);
-                if(mMediaPlayer != null) {
-                    mMediaPlayer.setPosition(Float.valueOf(parameter));
+                if(isTimeshifted()) {
+                    //rewind within the recorded window (1.0 = live), the player is restarted at this position
+                    mLiveStartPosition = mTimeshift.positionForFraction(Float.valueOf(parameter));
+                    createPlayer(ORFParser.ORF_LIVE_URL);
+                    if(mState.equals(MEDIA_STATE_PAUSED)) onCommand(ACTION_PLAY, "");
+                } else if(mMediaPlayer != null) {
+                    Mp3SeekIndex index = mSeekIndex;
+                    if(index != null) {
+                        seekTo((long) (Float.valueOf(parameter) * index.getDurationMs()));
+                    } else {
+                        mMediaPlayer.setPosition(Float.valueOf(parameter));
+                    }
                 }
                 break;
             default:
@@ -200,55 +429,190 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
         return true;
     }
 
+    /**
+     * Start the playback of a list (e.g. one day), beginning at the given position.
+     * The following programs are played automatically.
+     */
+    public void loadQueue(ArrayList<ORFParser.ORFProgram> programs, int position) {
+        mQueue.set(programs, position);
+        ORFParser.ORFProgram current = mQueue.current();
+        if(current != null) {
+            load(current.url);
+        }
+    }
+
+    /** title of the currently played queue item (or live program), null if there is no queue */
+    public String getCurrentTitle() {
+        if(isLive) return mSessionTitle;
+        ORFParser.ORFProgram current = mQueue.current();
+        return current != null ? current.title : null;
+    }
+
+    private void load(String url) {
+        TelephonyManager mgr;
+        if(!requestAudioFocus()) return;
+        mNextPrepared = false;
+        mNextUrl = null;
+        mNextIndex = -1;
+        mLiveRecordingDropped = false;
+
+        //the position of the previous item is written now
+        mResumeStore.flush();
+        isLive = url.equals(ORFParser.ORF_LIVE_URL);
+        //continue where this program was stopped the last time
+        mCurrentUrl = url;
+        //the queue item is the loaded one (the URL may be its offline copy)
+        mResumeKey = ResumeStore.keyOf(mQueue.current(), url);
+        mPendingResume = isLive ? 0 : mResumeStore.getPosition(mResumeKey);
+        loadSeekIndex(url);
+        //loading the live stream (again) jumps to the live position, the recording is kept
+        if(!isLive) mTimeshift.stop();
+        mLiveStartPosition = -1;
+        createPlayer(url);
+        if(isLive) {
+            mLiveSupervisor.start();
+        } else {
+            mLiveSupervisor.stop();
+        }
+        //repeated loads don't stack the locks, a lease is either held or not
+        setPlaybackLeases(true);
+        //the new item is always published, the state changes to "playing" with the Playing event
+        mTime = 0;
+        mLength = 0;
+
+        //lockscreen controls: registered once per playback session
+        if(PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(getString(R.string.SETTINGS_SHOW_LOCKSCREEN_NOTIFICATION), true)) {
+            mSession.register();
+        } else {
+            mSession.unregister();
+        }
+        mSessionTitle = isLive ? "LIVE" : getCurrentTitle();
+        mSession.setMetadata(mSessionTitle, 0);
+        mTicker.setTitle(isLive ? mSessionTitle : null);
+        notifyStateChanged();
+        updateLiveTitle();
+
+        mgr = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
+        if(mgr != null) {
+            mgr.listen(phoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
+        }
+    }
+
+    /** near the end of the current item: resolve the next one and fetch its beginning */
+    private void onTimeChanged(long time) {
+        if(mNextPrepared || isLive || !mQueue.hasNext() || mMediaPlayer == null) return;
+        long length = mMediaPlayer.getLength();
+        if(length > 0 && length - time < PREBUFFER_BEFORE_END_MS) {
+            mNextPrepared = true;
+            prepareNext();
+        }
+    }
+
+    private void prepareNext() {
+        final ORFParser.ORFProgram next = mQueue.peekNext();
+        final int nextIndex = mQueue.getIndex() + 1;
+        if(next == null) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String url = next.url;
+                //prefer an offline copy of the next program
+                ArrayList<ORFParser.ORFProgram> offline = new ORFParser().getProgramsOffline(getExternalCacheDir());
+                if(offline != null) {
+                    for(ORFParser.ORFProgram program : offline) {
+                        if(program.id == next.id && program.dayLabel != null && program.dayLabel.equals(next.dayLabel)) {
+                            url = program.url;
+                            break;
+                        }
+                    }
+                }
+                if(url.contains("http") && mProxy != null) {
+                    mProxy.prefetch(url, PREBUFFER_BYTES);
+                }
+                mNextUrl = url;
+                mNextIndex = nextIndex;
+            }
+        }).start();
+    }
+
+    /** end of the current item: continue with the queue or stop */
+    private void onEndReached() {
+        if(isLive) {
+            //the live stream is endless, the connection was lost
+            mLiveSupervisor.onError();
+            return;
+        }
+        mBufferPolicy.endSession();
+        if(mResumeKey != null) mResumeStore.clear(mResumeKey);
+        if(mQueue.hasNext()) {
+            onCommand(ACTION_NEXT, "");
+        } else {
+            setState(MEDIA_STATE_IDLE);
+            releasePlayer();
+            setPlaybackLeases(false);
+        }
+    }
+
+    /**
+     * The audio focus is requested before each start of the playback.
+     * If it is denied (e.g. during a call), nothing is played: the user is told and the
+     * listeners get the current (not playing) state again, so a UI waiting for "playing" is reset.
+     */
+    private boolean requestAudioFocus() {
+        if(mAudioManager.requestAudioFocus(mFocusListener, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN)
+                == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) return true;
+        Log.w("STREAM", "No audio focus, not playing");
+        Toast.makeText(MediaService.this, "Audio is used by another app", Toast.LENGTH_SHORT).show();
+        notifyStateChanged();
+        return false;
+    }
+
     @Override
     public void onDestroy() {
+        if(mSettings != null) {
+            mSettings.unregisterOnSharedPreferenceChangeListener(mSettingsListener);
+        }
+        if(mSession != null) {
+            mSession.release();
+        }
+        if(mAudioManager != null) {
+            mAudioManager.abandonAudioFocus(mFocusListener);
+        }
+        if(mBufferPolicy != null) {
+            mBufferPolicy.endSession();
+        }
+        if(mLiveSupervisor != null) {
+            mLiveSupervisor.stop();
+        }
+        mHandler.removeCallbacks(mLiveTitleUpdate);
+        mHandler.removeCallbacks(mStreamTitleUpdate);
+        mHandler.removeCallbacks(mStopPausedRecording);
+        if(mResumeStore != null) {
+            mResumeStore.close();
+        }
+        if(mLocks != null) {
+            setPlaybackLeases(false);
+            Log.i("STREAM", "Locks held: wake=" + mLocks.getHeldMs(LockLeaseManager.WAKE)
+                    + "ms wifi=" + mLocks.getHeldMs(LockLeaseManager.WIFI) + "ms");
+        }
+        if(mTimeshift != null) {
+            mTimeshift.stop();
+        }
+        if(mProxy != null) {
+            mProxy.stop();
+        }
         if(mMediaPlayer != null) {
             try {
                 mMediaPlayer.release();
             } catch (Exception e) {
                 Log.e("MEDIASERVICE_DESTROY",e.getMessage());
             }
-            try {
-                wifiLock.release();
-            } catch (Exception e) {
-                Log.e("MEDIASERVICE_DESTROY",e.getMessage());
-            }
-            try {
-                wakeLock.release();
-            } catch (Exception e) {
-                Log.e("MEDIASERVICE_DESTROY",e.getMessage());
-            }
             mMediaPlayer = null;
         }
-    }
-
-    public int getDuration() {
-        switch(mState) {
-            case MEDIA_STATE_PLAYING:
-                try {
-                    return safeLongToInt(mMediaPlayer.getLength());
-                } catch (NullPointerException e) {
-                    return -1;
-                }
-            case MEDIA_STATE_PAUSED:
-                return -2;
-            default:
-                return -1;
-        }
-    }
-
-    public int getCurrentPosition() {
-        switch(mState) {
-            case MEDIA_STATE_PLAYING:
-                try {
-                    return safeLongToInt(mMediaPlayer.getTime());
-                } catch (NullPointerException e) {
-                    return 0;
-                }
-            case MEDIA_STATE_PAUSED:
-                return -2;
-            default:
-                return -1;
+        if(libvlc != null) {
+            libvlc.release();
+            libvlc = null;
         }
     }
 
@@ -281,15 +645,20 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
         Toast.makeText(MediaService.this, "HardwareAccelerationError...", Toast.LENGTH_SHORT).show();
     }
 
-    private void createPlayer(String media) {
-        releasePlayer();
+    /**
+     * Create the LibVLC instance & the media player once, both are kept warm for the lifetime of the service.
+     * Initialising the native library is the most expensive part of starting a playback.
+     */
+    private void initPlayer() {
+        if(libvlc != null) return;
+        long start = SystemClock.elapsedRealtime();
         try {
             // Create LibVLC
             ArrayList<String> options = new ArrayList<>();
             options.add("--aout=opensles");
             options.add("--audio-time-stretch"); // time stretching
             options.add("-vvv"); // verbosity
-            //options.add("--network-caching=" + MEDIA_BUFFER_MS);
+            //the caching is set per media, see BufferPolicy
 
             libvlc = new LibVLC(options);
             libvlc.setOnHardwareAccelerationError(this);
@@ -297,16 +666,56 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
             // Create media player
             mMediaPlayer = new MediaPlayer(libvlc);
             mMediaPlayer.setEventListener(mPlayerListener);
+        } catch (Exception e) {
+            libvlc = null;
+            mMediaPlayer = null;
+            Log.e("STREAM", "Error creating LibVLC: " + e.getMessage());
+        }
+        Log.i("STREAM", "LibVLC init: " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    private void createPlayer(String media) {
+        //measure the time from the load command to the first "Playing" event
+        mLoadStartTime = SystemClock.elapsedRealtime();
+        initPlayer();
+        try {
+            //only the media is swapped, the player itself is reused
+            mMediaPlayer.stop();
+            int mediaType = BufferPolicy.mediaTypeFor(media);
+            mBufferPolicy.startSession();
+            mPlayingStarted = false;
+            mInStall = false;
 
+            int caching = mBufferPolicy.getCachingMs(mediaType);
             Media m;
             if(media.contains("http")) {
+                //on-demand programs are routed through the caching proxy, the live stream through the time-shift ring
+                if(isLive) {
+                    String liveUrl = startTimeshift(media, caching);
+                    if(liveUrl != null) {
+                        media = liveUrl;
+                        //data from the ring is available immediately
+                        caching = BufferPolicy.MIN_CACHING_MS;
+                    }
+                } else if(mProxy != null) {
+                    media = mProxy.getProxyUrl(media);
+                }
                 m = new Media(libvlc, Uri.parse(media));
             } else {
                 m = new Media(libvlc,media);
             }
+            //proxied/recorded streams lease the wifi lock themselves while they fetch
+            mDirectNetwork = media.contains("http") && !media.startsWith("http://127.0.0.1");
             //m.setHWDecoderEnabled(false,false);
-            m.addOption(":network-caching=6000");
+            mLiveCachingMs = caching;
+            if(mediaType == BufferPolicy.MEDIA_LOCAL) {
+                m.addOption(":file-caching=" + caching);
+            } else {
+                m.addOption(":network-caching=" + caching);
+            }
             mMediaPlayer.setMedia(m);
+            //the player holds its own reference
+            m.release();
             mMediaPlayer.play();
         } catch (Exception e) {
             Toast.makeText(MediaService.this, "Error creating player...", Toast.LENGTH_SHORT).show();
@@ -314,30 +723,318 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
         }
     }
 
+    /**
+     * Start (or keep) recording the live stream into the ring and return the proxy URL to play.
+     * A new live playback starts a reserve of "caching" ms behind the live position, if it
+     * was recorded already. Null if the ring can't be used, the stream is played directly then.
+     */
+    private String startTimeshift(String url, int caching) {
+        if(mProxy == null || !mProxy.isRunning()) return null;
+        try {
+            mTimeshift.start(url);
+        } catch (IOException e) {
+            Log.e("STREAM", "Error starting timeshift: " + e.getMessage());
+            return null;
+        }
+        long position = mLiveStartPosition;
+        mLiveStartPosition = -1;
+        if(position < 0) {
+            position = Math.max(mTimeshift.getOldestPosition(),
+                    mTimeshift.getLivePosition() - (long) caching * mTimeshift.getBytesPerSec() / 1000);
+        }
+        return mProxy.getLiveUrl(position);
+    }
+
+    /**
+     * Restart the live playback after a stall/error, the warm player is reused.
+     * With the time-shift ring the recorder gets a new connection and the playback
+     * continues where the player stopped, otherwise the stream is opened again.
+     */
+    private void reconnectLive() {
+        if(!isLive || mState.equals(MEDIA_STATE_IDLE)) return;
+        if(isTimeshifted()) {
+            mTimeshift.reconnect();
+            //the player got a bit more than it played (its cache)
+            mLiveStartPosition = Math.max(mTimeshift.getOldestPosition(), mTimeshift.getReadPosition()
+                    - (long) mLiveCachingMs * mTimeshift.getBytesPerSec() / 1000);
+        }
+        createPlayer(ORFParser.ORF_LIVE_URL);
+        if(mState.equals(MEDIA_STATE_PAUSED)) mMediaPlayer.pause();
+    }
+
+    /** the live stream is played from the time-shift ring (pause, rewind & jump to live are possible) */
+    private boolean isTimeshifted() {
+        return isLive && mTimeshift != null && mTimeshift.isRunning();
+    }
+
+    /** seeking is possible for on-demand programs & the time-shifted live stream */
+    public boolean isSeekable() {
+        return !isLive || isTimeshifted();
+    }
+
+    /** the seek index of a local file is loaded (or built once) in background */
+    private void loadSeekIndex(final String url) {
+        mSeekIndex = null;
+        if(url.contains("http")) return;
+        Mp3SeekIndex.get(new File(url), new Mp3SeekIndex.Callback() {
+            @Override
+            public void onIndex(Mp3SeekIndex index) {
+                //the next item may already be loaded
+                if(url.equals(mCurrentUrl)) mSeekIndex = index;
+            }
+        });
+    }
+
+    /**
+     * Seek to the given time. For local files with a seek index the exact byte offset of the frame
+     * is used (VLC seeks VBR files without a TOC by the average bitrate), otherwise VLC's setTime().
+     */
+    private void seekTo(long timeMs) {
+        Mp3SeekIndex index = mSeekIndex;
+        if(index != null && index.getFileLength() > 0) {
+            mMediaPlayer.setPosition((float) index.offsetFor(timeMs) / index.getFileLength());
+        } else {
+            mMediaPlayer.setTime(timeMs);
+        }
+    }
+
+    /** wake lock while playing, wifi lock additionally for direct network playback */
+    private void setPlaybackLeases(boolean playing) {
+        mWakeLease.set(playing);
+        mWifiLease.set(playing && mDirectNetwork);
+    }
+
+    public LockLeaseManager getLocks() {
+        return mLocks;
+    }
+
+    /** stop the playback, LibVLC and the player stay alive for the next load */
     private void releasePlayer() {
-        if (libvlc == null)
+        if (mMediaPlayer == null)
             return;
         mMediaPlayer.stop();
-        libvlc.release();
-        libvlc = null;
     }
 
-    public static int safeLongToInt(long l) {
-        int i = (int)l;
-        if ((long)i != l) {
-            throw new IllegalArgumentException(l + " cannot be cast to int without changing its value.");
+    /** buffering after the playback started is a stall, it's remembered by the buffer policy */
+    private void onBuffering(float percent) {
+        publishBuffering(percent);
+        if(!mPlayingStarted) return;
+        if(isLive) mLiveSupervisor.onBuffering(percent);
+        if(percent < 100f) {
+            if(!mInStall) {
+                mInStall = true;
+                mBufferPolicy.recordStall();
+                Log.i("STREAM", "Stall detected");
+            }
+        } else {
+            mInStall = false;
+        }
+    }
+
+    /** the player plays (started or resumed), the startup time (load command -> audio is playing) is logged */
+    private void onPlaying() {
+        mPlayingStarted = true;
+        setState(MEDIA_STATE_PLAYING);
+        //the delay to the live position may have changed (pause, rewind)
+        if(isLive) updateLiveTitle();
+        if(mPendingResume > 0) {
+            long length = mMediaPlayer.getLength();
+            if(mPendingResume > RESUME_MIN_MS && (length <= 0 || mPendingResume < length - RESUME_END_MARGIN_MS)) {
+                Log.i("STREAM", "Resume at " + mPendingResume + "ms");
+                seekTo(mPendingResume);
+            }
+            mPendingResume = 0;
+        }
+        if(mLoadStartTime > 0) {
+            Log.i("STREAM", "Startup time: " + (SystemClock.elapsedRealtime() - mLoadStartTime) + "ms");
+            mLoadStartTime = 0;
         }
-        return i;
+    }
+
+    /** a load was started, but the player doesn't play yet */
+    private boolean isLoading() {
+        return mCurrentUrl != null && !mPlayingStarted;
+    }
+
+    /** the player stopped by itself (not by swapping the media for a load) */
+    private void onStopped() {
+        if(isLoading()) return;
+        setState(MEDIA_STATE_IDLE);
     }
 
     public void setState(String state) {
+        if(state.equals(mState)) return;
         this.mState = state;
+        mHandler.removeCallbacks(mStopPausedRecording);
+        if(state.equals(MEDIA_STATE_PAUSED) && isTimeshifted()) {
+            mHandler.postDelayed(mStopPausedRecording, mTimeshift.getCapacityMs());
+        }
+        //pause/stop: the position is written now, not only with the next coalesced write
+        if(!state.equals(MEDIA_STATE_PLAYING)) mResumeStore.flush();
+        if(state.equals(MEDIA_STATE_IDLE)) mSession.unregister();
+        notifyStateChanged();
+    }
+
+    private void notifyStateChanged() {
+        mSession.setState(mState);
+        for(int i = 0; i < mPlaybackListeners.size(); i++) {
+            mPlaybackListeners.get(i).listener.onStateChanged(mState, mTime, mLength);
+        }
+    }
+
+    public String getState() {
+        return mState;
+    }
+
+    /**
+     * Register a listener for the playback state & position.
+     * State changes are delivered immediately, position updates at most once per interval.
+     * All callbacks are done on the main thread.
+     */
+    public void addPlaybackListener(PlaybackListener listener, long intervalMs) {
+        removePlaybackListener(listener);
+        mPlaybackListeners.add(new ListenerRecord(listener, intervalMs));
+        updateNotificationInterval();
+        //deliver the current state, so the subscriber is in sync
+        listener.onStateChanged(mState, mTime, mLength);
+    }
+
+    public void removePlaybackListener(PlaybackListener listener) {
+        for(int i = mPlaybackListeners.size() - 1; i >= 0; i--) {
+            if(mPlaybackListeners.get(i).listener == listener) mPlaybackListeners.remove(i);
+        }
+        updateNotificationInterval();
+    }
+
+    /**
+     * The UI subscribes only while it is visible: with a subscriber the notification is updated
+     * every second, otherwise once a minute (or on state changes)
+     */
+    private void updateNotificationInterval() {
+        if(mNotificationRecord == null) return;
+        boolean uiAttached = mPlaybackListeners.size() > 1;
+        mNotificationRecord.intervalMs = uiAttached ? NOTIFICATION_INTERVAL_UI_MS : NOTIFICATION_INTERVAL_BACKGROUND_MS;
+    }
+
+    private void readNotificationSettings() {
+        mShowPlayNotification = mSettings.getBoolean(getString(R.string.SETTINGS_SHOW_PLAY_NOTIFICATION), true);
+        mShowPausedNotification = mSettings.getBoolean(getString(R.string.SETTINGS_SHOW_PAUSED_NOTIFICATION), true);
+    }
+
+    private void updateNotification(String state, long time, long length) {
+        mTicker.format(state, time, length);
+        mTicker.updateNotification(this, state, mShowPlayNotification, mShowPausedNotification);
+    }
+
+    private void onPositionChanged(long time) {
+        long length = mMediaPlayer != null ? mMediaPlayer.getLength() : 0;
+        if(isTimeshifted()) {
+            //position within the recorded window, the player is behind the ring reader by its cache
+            length = mTimeshift.getWindowMs();
+            time = Math.max(0, mTimeshift.getPositionMs() - mLiveCachingMs);
+        }
+        if(time == mTime && length == mLength) return;
+        if(length != mLength && length > 0 && !isLive) {
+            mSession.setMetadata(mSessionTitle, length);
+        }
+        if(!isLive && mPendingResume == 0 && length > 0 && mResumeKey != null) {
+            mResumeStore.update(mResumeKey, time, length);
+        }
+        mTime = time;
+        mLength = length;
+        long now = SystemClock.elapsedRealtime();
+        for(int i = 0; i < mPlaybackListeners.size(); i++) {
+            ListenerRecord record = mPlaybackListeners.get(i);
+            if(now - record.lastDelivered >= record.intervalMs) {
+                record.lastDelivered = now;
+                record.listener.onPositionChanged(time, length);
+            }
+        }
+    }
+
+    private void publishBuffering(float percent) {
+        for(int i = 0; i < mPlaybackListeners.size(); i++) {
+            mPlaybackListeners.get(i).listener.onBuffering(percent);
+        }
+    }
+
+    /**
+     * Listener for the playback state & position, driven by the VLC events
+     * (the player isn't polled)
+     */
+    public interface PlaybackListener {
+        /** the state changed (one of MEDIA_STATE_*) */
+        void onStateChanged(String state, long time, long length);
+        /** the position changed (ms), delivered at most once per registered interval */
+        void onPositionChanged(long time, long length);
+        /** the player is buffering (0-100%) */
+        void onBuffering(float percent);
+    }
+
+    private static class ListenerRecord {
+        final PlaybackListener listener;
+        long intervalMs;
+        long lastDelivered = 0;
+
+        ListenerRecord(PlaybackListener listener, long intervalMs) {
+            this.listener = listener;
+            this.intervalMs = intervalMs;
+        }
     }
 
     public boolean isLive() {
         return isLive;
     }
 
+    /** the lists of today/yesterday changed, the live title is taken from this schedule */
+    public void setLiveSchedule(LiveSchedule schedule) {
+        mLiveSchedule = schedule;
+        updateLiveTitle();
+    }
+
+    /**
+     * A new StreamTitle was recorded at the ring position: the title is updated, when the player
+     * (which is behind the ring reader by its cache) gets there.
+     */
+    private void onStreamTitleRecorded(long position) {
+        if(!isTimeshifted()) return;
+        long ahead = Math.max(0, position - mTimeshift.getReadPosition()) * 1000 / mTimeshift.getBytesPerSec();
+        mHandler.removeCallbacks(mStreamTitleUpdate);
+        mHandler.postDelayed(mStreamTitleUpdate, ahead + mLiveCachingMs);
+    }
+
+    /**
+     * Show the title of the program, which is currently heard in the live stream (the timeshift delay
+     * is considered), and schedule the next update exactly at the start of the following program.
+     * The StreamTitle of the stream is preferred, the schedule is the fallback.
+     * No wakeup is scheduled while paused, the title is updated again on playing.
+     */
+    private void updateLiveTitle() {
+        mHandler.removeCallbacks(mLiveTitleUpdate);
+        if(!isLive) return;
+        long delay = isTimeshifted() ? Math.max(0, mTimeshift.getWindowMs() - mTimeshift.getPositionMs()) + mLiveCachingMs : 0;
+        long now = System.currentTimeMillis() - delay;
+        LiveSchedule schedule = mLiveSchedule;
+        ORFParser.ORFProgram current = schedule != null ? schedule.current(now) : null;
+        String streamTitle = null;
+        if(isTimeshifted()) {
+            //the player is behind the ring reader by its cache
+            long heard = mTimeshift.getReadPosition() - (long) mLiveCachingMs * mTimeshift.getBytesPerSec() / 1000;
+            streamTitle = mTimeshift.getStreamTitle(heard);
+        }
+        String title = streamTitle != null ? "LIVE: " + streamTitle : (current != null ? "LIVE: " + current.title : "LIVE");
+        if(!title.equals(mSessionTitle)) {
+            mSessionTitle = title;
+            mSession.setMetadata(title, 0);
+            mTicker.setTitle(title);
+            notifyStateChanged();
+        }
+        long next = schedule != null ? schedule.nextStart(now) : -1;
+        if(next > 0 && mState.equals(MEDIA_STATE_PLAYING)) {
+            mHandler.postDelayed(mLiveTitleUpdate, next - now);
+        }
+    }
+
     private static class MyPlayerListener implements MediaPlayer.EventListener {
         private WeakReference<MediaService> mOwner;
 
@@ -352,12 +1049,29 @@ public class MediaService extends Service implements IVLCVout.Callback, LibVLC.H
 
             switch(event.type) {
                 case MediaPlayer.Event.EndReached:
-                    player.setState(MediaService.MEDIA_STATE_IDLE);
-                    player.releasePlayer();
+                    player.onEndReached();
+                    break;
+                case MediaPlayer.Event.TimeChanged:
+                    if(player.isLive) player.mLiveSupervisor.onProgress();
+                    player.onPositionChanged(event.getTimeChanged());
+                    player.onTimeChanged(event.getTimeChanged());
                     break;
                 case MediaPlayer.Event.Playing:
+                    player.onPlaying();
+                    break;
+                case MediaPlayer.Event.Buffering:
+                    player.onBuffering(event.getBuffering());
+                    break;
+                case MediaPlayer.Event.EncounteredError:
+                    Log.w("STREAM", "Player error");
+                    if(player.isLive) player.mLiveSupervisor.onError();
+                    break;
                 case MediaPlayer.Event.Paused:
+                    if(player.mState.equals(MEDIA_STATE_PLAYING)) player.setState(MEDIA_STATE_PAUSED);
+                    break;
                 case MediaPlayer.Event.Stopped:
+                    player.onStopped();
+                    break;
                 default:
                     break;
             }
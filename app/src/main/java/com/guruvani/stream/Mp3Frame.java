@@ -0,0 +1,141 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+/**
+ * Header of a MPEG audio frame (MPEG 1/2/2.5, layer I/II/III).
+ *
+ * parse() decodes the 4 header bytes, it returns null if they are no valid frame header.
+ */
+public class Mp3Frame {
+    private final static int[][] BITRATES = {
+            //MPEG1 layer I, II, III
+            { 0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448 },
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 },
+            { 0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320 },
+            //MPEG2/2.5 layer I, II & III
+            { 0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256 },
+            { 0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160 }
+    };
+    private final static int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    /** 1 (MPEG1), 2 (MPEG2) or 25 (MPEG2.5) **/
+    public final int version;
+    /** 1, 2 or 3 **/
+    public final int layer;
+    /** kbit/s **/
+    public final int bitrate;
+    public final int sampleRate;
+    public final boolean mono;
+    /** length of the frame in bytes, including the header **/
+    public final int length;
+    public final int samples;
+
+    private Mp3Frame(int version, int layer, int bitrate, int sampleRate, boolean padding, boolean mono) {
+        this.version = version;
+        this.layer = layer;
+        this.bitrate = bitrate;
+        this.sampleRate = sampleRate;
+        this.mono = mono;
+        int pad = padding ? 1 : 0;
+        if(layer == 1) {
+            samples = 384;
+            length = (12 * bitrate * 1000 / sampleRate + pad) * 4;
+        } else if(layer == 3 && version != 1) {
+            samples = 576;
+            length = 72 * bitrate * 1000 / sampleRate + pad;
+        } else {
+            samples = 1152;
+            length = 144 * bitrate * 1000 / sampleRate + pad;
+        }
+    }
+
+    /** decode the frame header (big endian), null if it is not valid */
+    public static Mp3Frame parse(int header) {
+        if((header & 0xFFE00000) != 0xFFE00000) return null;
+        int versionBits = (header >> 19) & 3;
+        int layerBits = (header >> 17) & 3;
+        int bitrateIndex = (header >> 12) & 15;
+        int rateIndex = (header >> 10) & 3;
+        if(versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) return null;
+
+        int version = versionBits == 3 ? 1 : (versionBits == 2 ? 2 : 25);
+        int layer = 4 - layerBits;
+        int table = version == 1 ? layer - 1 : (layer == 1 ? 3 : 4);
+        int sampleRate = SAMPLE_RATES[rateIndex];
+        if(version == 2) sampleRate /= 2;
+        if(version == 25) sampleRate /= 4;
+        boolean padding = ((header >> 9) & 1) == 1;
+        boolean mono = ((header >> 6) & 3) == 3;
+        return new Mp3Frame(version, layer, BITRATES[table][bitrateIndex], sampleRate, padding, mono);
+    }
+
+    /** duration of the frame in microseconds */
+    public long durationUs() {
+        return samples * 1000000L / sampleRate;
+    }
+
+    /** size of the side information, which follows the header */
+    public int sideInfoSize() {
+        if(version == 1) return mono ? 17 : 32;
+        return mono ? 9 : 17;
+    }
+
+    /**
+     * Number of frames from a Xing/Info or VBRI header in this frame (which starts at offset),
+     * -1 if there is none (or it doesn't contain the frame count)
+     */
+    public int vbrFrameCount(byte[] data, int offset, int length) {
+        int xing = offset + 4 + sideInfoSize();
+        if(xing + 12 <= length && (matches(data, xing, "Xing") || matches(data, xing, "Info"))) {
+            int flags = readInt(data, xing + 4);
+            return (flags & 1) != 0 ? readInt(data, xing + 8) : -1;
+        }
+        int vbri = offset + 4 + 32;
+        if(vbri + 18 <= length && matches(data, vbri, "VBRI")) {
+            return readInt(data, vbri + 14);
+        }
+        return -1;
+    }
+
+    private static boolean matches(byte[] data, int offset, String tag) {
+        for(int i = 0; i < tag.length(); i++) {
+            if(data[offset + i] != tag.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /** size of the ID3v2 tag at the beginning of the file (10 byte header), 0 if there is none */
+    public static int id3v2Size(byte[] head) {
+        if(head.length < 10 || head[0] != 'I' || head[1] != 'D' || head[2] != '3') return 0;
+        //syncsafe integer
+        int size = ((head[6] & 0x7F) << 21) | ((head[7] & 0x7F) << 14) | ((head[8] & 0x7F) << 7) | (head[9] & 0x7F);
+        //footer flag
+        if((head[5] & 0x10) != 0) size += 10;
+        return size + 10;
+    }
+}
@@ -0,0 +1,254 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Time -> byte offset index of a (downloaded) MP3 file.
+ *
+ * The file is scanned frame by frame once, the offset of the frame at each full INTERVAL_MS
+ * is recorded. The index is stored as a hidden sidecar file next to the MP3 (.name.idx),
+ * it's invalidated if the size or the modification time of the MP3 changed.
+ * With the index, a seek in a VBR file lands exactly at the requested time.
+ */
+public class Mp3SeekIndex {
+    public final static int INTERVAL_MS = 1000;
+    private final static int MAGIC = 0x4D503349; //"MP3I"
+    private final static int VERSION = 1;
+
+    //one indexer for all files, the scan is I/O bound
+    private final static ExecutorService indexer = Executors.newSingleThreadExecutor();
+
+    private final long fileLength;
+    private final long durationMs;
+    private final int[] offsets;
+
+    private Mp3SeekIndex(long fileLength, long durationMs, int[] offsets) {
+        this.fileLength = fileLength;
+        this.durationMs = durationMs;
+        this.offsets = offsets;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /** byte offset of the frame at the given time */
+    public long offsetFor(long timeMs) {
+        if(offsets.length == 0) return 0;
+        int index = (int) Math.max(0, Math.min(offsets.length - 1, timeMs / INTERVAL_MS));
+        return offsets[index] & 0xFFFFFFFFL;
+    }
+
+    public interface Callback {
+        /** called on the indexer thread, index is null if the file couldn't be indexed */
+        void onIndex(Mp3SeekIndex index);
+    }
+
+    /** load the index of the file (in background), it is built first if there is no valid one */
+    public static void get(final File mp3, final Callback callback) {
+        indexer.execute(new Runnable() {
+            @Override
+            public void run() {
+                Mp3SeekIndex index = load(mp3);
+                if(index == null) index = build(mp3);
+                if(callback != null) callback.onIndex(index);
+            }
+        });
+    }
+
+    /** build the index of a newly downloaded file in background */
+    public static void buildAsync(File mp3) {
+        get(mp3, null);
+    }
+
+    private static File sidecar(File mp3) {
+        return new File(mp3.getParentFile(), "." + mp3.getName() + ".idx");
+    }
+
+    /** read the sidecar, null if there is none or it doesn't belong to the current file */
+    public static Mp3SeekIndex load(File mp3) {
+        File idx = sidecar(mp3);
+        if(!idx.exists()) return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(idx)));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            long length = in.readLong();
+            long modified = in.readLong();
+            if(length != mp3.length() || modified != mp3.lastModified() || in.readInt() != INTERVAL_MS) return null;
+            long duration = in.readLong();
+            int[] offsets = new int[in.readInt()];
+            for(int i = 0; i < offsets.length; i++) {
+                offsets[i] = in.readInt();
+            }
+            return new Mp3SeekIndex(length, duration, offsets);
+        } catch (IOException e) {
+            Log.w("SEEKINDEX", "Invalid index " + idx + ": " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /** scan the file & write the sidecar, null if the file isn't a MP3 */
+    public static Mp3SeekIndex build(File mp3) {
+        long start = System.currentTimeMillis();
+        InputStream in = null;
+        int[] offsets = new int[1024];
+        int count = 0;
+        long timeUs = 0;
+        int frames = 0;
+        try {
+            in = new BufferedInputStream(new FileInputStream(mp3), 64 * 1024);
+            byte[] head = new byte[10];
+            in.mark(head.length);
+            readFully(in, head);
+            in.reset();
+            //skip the ID3v2 tag
+            long pos = skipFully(in, Mp3Frame.id3v2Size(head));
+            int header = 0;
+            int headerBytes = 0;
+            while(true) {
+                //shift in bytes until a frame header is found
+                while(headerBytes < 4 || Mp3Frame.parse(header) == null) {
+                    int b = in.read();
+                    if(b < 0) throw new EOFException();
+                    header = (header << 8) | b;
+                    headerBytes++;
+                    pos++;
+                }
+                Mp3Frame frame = Mp3Frame.parse(header);
+                long frameStart = pos - 4;
+                if(timeUs / 1000 >= (long) count * INTERVAL_MS) {
+                    if(count == offsets.length) {
+                        int[] grown = new int[count * 2];
+                        System.arraycopy(offsets, 0, grown, 0, count);
+                        offsets = grown;
+                    }
+                    offsets[count++] = (int) frameStart;
+                }
+                //noinspection ConstantConditions
+                timeUs += frame.durationUs();
+                frames++;
+                long skip = frame.length - 4;
+                if(skipFully(in, skip) < skip) break;
+                pos += skip;
+                headerBytes = 0;
+            }
+        } catch (EOFException e) {
+            //end of the file
+        } catch (IOException e) {
+            Log.w("SEEKINDEX", "Scan of " + mp3 + " failed: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        if(frames == 0) return null;
+
+        int[] compact = new int[count];
+        System.arraycopy(offsets, 0, compact, 0, count);
+        Mp3SeekIndex index = new Mp3SeekIndex(mp3.length(), timeUs / 1000, compact);
+        index.write(mp3);
+        Log.i("SEEKINDEX", mp3.getName() + ": " + frames + " frames, " + index.durationMs + "ms, "
+                + count + " entries in " + (System.currentTimeMillis() - start) + "ms");
+        return index;
+    }
+
+    private void write(File mp3) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar(mp3))));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(fileLength);
+            out.writeLong(mp3.lastModified());
+            out.writeInt(INTERVAL_MS);
+            out.writeLong(durationMs);
+            out.writeInt(offsets.length);
+            for(int offset : offsets) {
+                out.writeInt(offset);
+            }
+        } catch (IOException e) {
+            Log.w("SEEKINDEX", "Writing the index failed: " + e.getMessage());
+        } finally {
+            if(out != null) {
+                try { out.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /** delete the sidecar of a removed file */
+    public static void delete(File mp3) {
+        //noinspection ResultOfMethodCallIgnored
+        sidecar(mp3).delete();
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int read = 0;
+        while(read < buffer.length) {
+            int n = in.read(buffer, read, buffer.length - read);
+            if(n < 0) throw new EOFException();
+            read += n;
+        }
+    }
+
+    private static long skipFully(InputStream in, long bytes) throws IOException {
+        long skipped = 0;
+        while(skipped < bytes) {
+            long n = in.skip(bytes - skipped);
+            if(n <= 0) {
+                //skip() may return 0 before the end, read() tells
+                if(in.read() < 0) break;
+                n = 1;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if(in == null) return;
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+
+/**
+ * Pre-warm of the network path to the stream & schedule hosts.
+ *
+ * The host names are resolved and a TCP connection is opened & closed once in background,
+ * so the resolver cache is filled and the mobile radio is already active when the user
+ * taps "Live" (libVLC & HttpURLConnection can't take over a raw socket, so no connection
+ * is kept). Each host is warmed at most once per WARM_TTL_MS.
+ */
+public class NetworkPrewarm {
+    private final static long WARM_TTL_MS = 5 * 60 * 1000;
+    private final static int CONNECT_TIMEOUT_MS = 3000;
+
+    //host:port -> time of the last pre-warm
+    private final static HashMap<String, Long> warmed = new HashMap<>();
+
+    /** pre-warm the hosts of the given URLs in a background thread */
+    public static void prewarm(final String... urls) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for(String url : urls) {
+                    warm(url);
+                }
+            }
+        }, "NetworkPrewarm").start();
+    }
+
+    private static void warm(String url) {
+        String host;
+        int port;
+        try {
+            URL u = new URL(url);
+            host = u.getHost();
+            port = u.getPort() > 0 ? u.getPort() : u.getDefaultPort();
+        } catch (IOException e) {
+            return;
+        }
+        String key = host + ":" + port;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (warmed) {
+            Long last = warmed.get(key);
+            if(last != null && now - last < WARM_TTL_MS) return;
+            warmed.put(key, now);
+        }
+
+        Socket socket = null;
+        try {
+            long start = SystemClock.elapsedRealtime();
+            InetAddress address = InetAddress.getByName(host);
+            long resolved = SystemClock.elapsedRealtime();
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+            Log.i("PREWARM", key + ": dns=" + (resolved - start) + "ms connect="
+                    + (SystemClock.elapsedRealtime() - resolved) + "ms");
+        } catch (IOException e) {
+            //offline: try again next time
+            synchronized (warmed) {
+                warmed.remove(key);
+            }
+            Log.d("PREWARM", key + ": " + e.getMessage());
+        } finally {
+            if(socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -63,7 +63,6 @@ import javax.xml.transform.stream.StreamResult;
  * In addition this class provides the offline programs (accessed via an XML file)
  */
 public class ORFParser {
-    private ArrayList<ORFProgram> programList;
     public final static String ORF_FULL_BASE_URL = "http://oe1.orf.at/programm/konsole/tag/";
     public final static String ORF_LIVE_URL = "http://mp3stream3.apasf.apa.at:8000/;stream.mp3";
     //public final static String ORF_LIVE_URL = "http://listen.radionomy.com:80/SwastikTeluguBhajansDhuns";
@@ -83,7 +82,8 @@ public class ORFParser {
     /*public static String ORF_DURATION_URL1 = "http://oe1.orf.at/programm/";
     public static String ORF_DURATION_URL2 = "/playlist";*/
 
-    private String fetchURL(URL orfURL) throws IOException {
+    /** fetch & parse the list, null if it is invalid */
+    private ArrayList<ORFProgram> fetchURL(URL orfURL) throws IOException {
         //flag of being in the program list
         //boolean inList = false;
 
@@ -101,9 +101,9 @@ public class ORFParser {
         return this.parse(result.toString());
     }
 
-    private String parse(String s) {
-        //recreate program list each time
-        programList = new ArrayList<>();
+    /** the list is created for each call: parsers of different days may run at the same time */
+    private ArrayList<ORFProgram> parse(String s) {
+        ArrayList<ORFProgram> programList = new ArrayList<>();
 
         try {
             //open JSON object
@@ -134,11 +134,12 @@ public class ORFParser {
 
         } catch (JSONException e) {
             Log.e("ORFParser", "\n" + "List does not fit...");
-            return "List is invalid , please contact the Sunny";
+            return null;
         }
-        return "";
+        return programList;
     }
 
+    /** program list of the day, null if the fetch failed */
     public ArrayList<ORFProgram> getProgramsForDay(Date day) {
         Calendar dayCalendar = new GregorianCalendar();
         dayCalendar.setTime(day);
@@ -148,12 +149,12 @@ public class ORFParser {
             String daynr = String.format("%1$02d", dayCalendar.get(Calendar.DAY_OF_MONTH));
 
             String fullURLString = ORF_FULL_BASE_URL + dayCalendar.get(Calendar.YEAR) + month + daynr;
-            this.fetchURL(new URL(fullURLString));
+            return this.fetchURL(new URL(fullURLString));
         } catch (IOException e) {
             e.printStackTrace();
         }
         //return LOCAL_DATA;
-        return this.programList;
+        return null;
     }
 
     public ArrayList<ORFProgram> getProgramsOffline(File cacheDir) {
@@ -252,6 +253,7 @@ public class ORFParser {
                         File del = new File(fileNameToDelete);
                         //noinspection ResultOfMethodCallIgnored
                         del.delete();
+                        Mp3SeekIndex.delete(del);
                         Log.d("FILE", "Removed File: " + fileNameToDelete);
                     }
                     break;
@@ -366,5 +368,38 @@ public class ORFParser {
         public String info;
         public String url;
         public String dayLabel;
+
+        /** copy with another URL (the programs in the day lists aren't modified) */
+        public ORFProgram withUrl(String url) {
+            ORFProgram copy = new ORFProgram();
+            copy.id = id;
+            copy.time = time;
+            copy.title = title;
+            copy.shortTitle = shortTitle;
+            copy.info = info;
+            copy.url = url;
+            copy.dayLabel = dayLabel;
+            return copy;
+        }
+
+        //equal content: an unchanged list isn't redrawn after a refetch
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof ORFProgram)) return false;
+            ORFProgram other = (ORFProgram) o;
+            return id == other.id && equal(time, other.time) && equal(title, other.title)
+                    && equal(shortTitle, other.shortTitle) && equal(info, other.info)
+                    && equal(url, other.url) && equal(dayLabel, other.dayLabel);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * id + (url != null ? url.hashCode() : 0);
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
     }
 }
@@ -0,0 +1,79 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simple playlist for the media service.
+ *
+ * Holds a copy of the list the user started the playback from and the position
+ * of the currently played program. An empty queue means single playback (e.g. live).
+ */
+public class PlaybackQueue {
+    private final ArrayList<ORFParser.ORFProgram> items = new ArrayList<>();
+    private int index = -1;
+
+    public synchronized void set(List<ORFParser.ORFProgram> programs, int position) {
+        items.clear();
+        if(programs != null) items.addAll(programs);
+        index = (position >= 0 && position < items.size()) ? position : -1;
+    }
+
+    public synchronized void clear() {
+        items.clear();
+        index = -1;
+    }
+
+    public synchronized int getIndex() {
+        return index;
+    }
+
+    public synchronized ORFParser.ORFProgram current() {
+        return index >= 0 ? items.get(index) : null;
+    }
+
+    public synchronized boolean hasNext() {
+        return index >= 0 && index + 1 < items.size();
+    }
+
+    public synchronized boolean hasPrevious() {
+        return index > 0;
+    }
+
+    public synchronized ORFParser.ORFProgram peekNext() {
+        return hasNext() ? items.get(index + 1) : null;
+    }
+
+    public synchronized ORFParser.ORFProgram moveToNext() {
+        if(!hasNext()) return null;
+        index++;
+        return items.get(index);
+    }
+
+    public synchronized ORFParser.ORFProgram moveToPrevious() {
+        if(!hasPrevious()) return null;
+        index--;
+        return items.get(index);
+    }
+}
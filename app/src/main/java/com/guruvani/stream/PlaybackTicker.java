@@ -0,0 +1,134 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.app.NotificationCompat;
+
+/**
+ * Progress text & play notification, updated on each playback tick.
+ *
+ * The builder, the intents and the text buffers (including the "Play: " line) are created once and reused.
+ * The time is formatted by a TimeFormatter and the notification is only rebuilt
+ * if the displayed text or the state changed.
+ */
+public class PlaybackTicker {
+    private final static String TITLE = "01 - Guru Vani Stream";
+
+    private final NotificationManager notificationManager;
+    private final NotificationCompat.Builder builder;
+
+    private final TimeFormatter formatter = new TimeFormatter();
+    //text & state of the last notification
+    private final char[] notifiedText = new char[24];
+    private int notifiedLength = -1;
+    private String notifiedState = null;
+    private boolean isForeground = false;
+    //content text of the notification, written per tick (it's copied by notify())
+    private final StringBuilder contentText = new StringBuilder(32);
+
+    public PlaybackTicker(Context context) {
+        notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        Intent notificationIntent = new Intent(context, MainActivity.class)
+                .setFlags(Intent.FLAG_ACTIVITY_PREVIOUS_IS_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0, notificationIntent, 0);
+        builder = new NotificationCompat.Builder(context)
+                .setContentTitle(TITLE)
+                .setSmallIcon(R.drawable.notification_play)
+                .setContentIntent(contentIntent)
+                .setOnlyAlertOnce(true);
+    }
+
+    /** title of the notification (e.g. the current live program), null for the default title */
+    public void setTitle(String title) {
+        builder.setContentTitle(title != null ? title : TITLE);
+        //the next update is issued, even if the text didn't change
+        notifiedState = null;
+    }
+
+    /**
+     * format the time of the given state
+     * @return true, if the text differs from the last formatted one
+     */
+    public boolean format(String state, long time, long length) {
+        return formatter.format(state, time, length);
+    }
+
+    /**
+     * Update the play notification according to the state, using the last formatted text.
+     * Nothing is done if neither the state nor the text changed since the last call.
+     */
+    public void updateNotification(Service service, String state, boolean showPlay, boolean showPaused) {
+        if(state.equals(notifiedState) && formatter.equalsText(notifiedText, notifiedLength)) return;
+        boolean stateChanged = !state.equals(notifiedState);
+        notifiedState = state;
+        notifiedLength = formatter.copyText(notifiedText);
+
+        switch(state) {
+            case MediaService.MEDIA_STATE_IDLE:
+                //cancel() if the playback is stopped
+                stopForeground(service);
+                notificationManager.cancel(MainActivity.NOTIFICATION_PLAY_ID);
+                break;
+            case MediaService.MEDIA_STATE_PAUSED:
+                stopForeground(service);
+                //paused: only one notification is issued
+                if(!stateChanged) break;
+                if(showPaused) {
+                    builder.setContentText(contentText("Pause: "));
+                    notificationManager.notify(MainActivity.NOTIFICATION_PLAY_ID, builder.build());
+                } else {
+                    notificationManager.cancel(MainActivity.NOTIFICATION_PLAY_ID);
+                }
+                break;
+            default:
+                if(!showPlay) break;
+                //if the playback is active, display the current time
+                builder.setContentText(contentText("Play: "));
+                if(!isForeground) {
+                    service.startForeground(MainActivity.NOTIFICATION_PLAY_ID, builder.build());
+                    isForeground = true;
+                } else {
+                    notificationManager.notify(MainActivity.NOTIFICATION_PLAY_ID, builder.build());
+                }
+                break;
+        }
+    }
+
+    //prefix & the formatted time, without allocating a new string
+    private CharSequence contentText(String prefix) {
+        contentText.setLength(0);
+        contentText.append(prefix).append(formatter.getText(), 0, formatter.getTextLength());
+        return contentText;
+    }
+
+    private void stopForeground(Service service) {
+        if(isForeground) {
+            service.stopForeground(true);
+            isForeground = false;
+        }
+    }
+}
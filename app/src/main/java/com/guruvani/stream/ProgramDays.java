@@ -0,0 +1,215 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The program lists of all days, keyed by the day (days before today, 0 = today).
+ * The offline programs are stored with the key OFFLINE.
+ *
+ * The lists are held in an immutable, versioned Snapshot behind an AtomicReference:
+ * readers get a consistent view of all days without a lock, a writer copies the current
+ * snapshot, changes the copy & swaps it in (retried, if another writer was faster).
+ * A list (and its programs) is never modified, once it's set.
+ *
+ * Kept in the retained MainFragment, so the lists survive runtime changes. So do the times
+ * of the last fetches & the running fetches: after a rotation only the stale days are refetched.
+ * Changed lists are handed to the listeners (ScheduleSnapshot, ProgramSearchIndex).
+ */
+public class ProgramDays {
+    public final static int OFFLINE = -1;
+    /** default number of days shown before today (see SETTINGS_HISTORY_DAYS) **/
+    public final static int DEFAULT_HISTORY = 7;
+    public final static int MAX_HISTORY = 30;
+    /** a failed day is fetched again after this delay, doubled with each further failure **/
+    private final static long RETRY_MIN_MS = 10000;
+    private final static long RETRY_MAX_MS = 5 * 60 * 1000;
+
+    private final AtomicReference<Snapshot> current =
+            new AtomicReference<>(new Snapshot(0, new SparseArray<ArrayList<ORFParser.ORFProgram>>(), new SparseIntArray()));
+    //guarded by this, only used by the writers: start (elapsedRealtime) of the running
+    //fetches & of the last successful fetch of each day
+    private final SparseArray<Long> loading = new SparseArray<>();
+    private final SparseArray<Long> fetched = new SparseArray<>();
+    //failed fetches in a row & the time (elapsedRealtime), before which the day isn't fetched again
+    private final SparseIntArray failures = new SparseIntArray();
+    private final SparseArray<Long> retryAt = new SparseArray<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public interface Listener {
+        /** the list of the day changed, called on the thread, which set it */
+        void onDayChanged(int day, ArrayList<ORFParser.ORFProgram> programs);
+    }
+
+    /** immutable state of all days, each change creates a new snapshot with the next version */
+    public static class Snapshot {
+        public final long version;
+        private final SparseArray<ArrayList<ORFParser.ORFProgram>> days;
+        //date (yyyyMMdd) of each list, when it was set (the day offset changes at midnight)
+        private final SparseIntArray dates;
+
+        private Snapshot(long version, SparseArray<ArrayList<ORFParser.ORFProgram>> days, SparseIntArray dates) {
+            this.version = version;
+            this.days = days;
+            this.dates = dates;
+        }
+
+        /** program list of the given day, null if it wasn't fetched yet */
+        public ArrayList<ORFParser.ORFProgram> get(int day) {
+            return days.get(day);
+        }
+
+        /** date (yyyyMMdd) of the list of the day, 0 if there is none */
+        public int getDateKey(int day) {
+            return dates.get(day);
+        }
+
+        /** the days with a list (including OFFLINE) */
+        public int[] getDays() {
+            int[] keys = new int[days.size()];
+            for(int i = 0; i < keys.length; i++) {
+                keys[i] = days.keyAt(i);
+            }
+            return keys;
+        }
+
+        /** copy with the list of the day replaced */
+        private Snapshot with(int day, ArrayList<ORFParser.ORFProgram> programs) {
+            SparseArray<ArrayList<ORFParser.ORFProgram>> newDays = days.clone();
+            SparseIntArray newDates = dates.clone();
+            newDays.put(day, programs);
+            newDates.put(day, keyOf(day));
+            return new Snapshot(version + 1, newDays, newDates);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** consistent view of all days */
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    /** program list of the given day, null if it wasn't fetched yet */
+    public ArrayList<ORFParser.ORFProgram> get(int day) {
+        return current.get().get(day);
+    }
+
+    /**
+     * a fetch of the day starts
+     * @return false, if a fetch of the day is already running or the day failed recently (backoff)
+     */
+    public synchronized boolean startLoading(int day) {
+        if(loading.get(day) != null) return false;
+        long now = SystemClock.elapsedRealtime();
+        Long retry = retryAt.get(day);
+        if(retry != null && now < retry) return false;
+        loading.put(day, now);
+        return true;
+    }
+
+    /** the fetch of the day is done, success: a list was received (changed or not) */
+    public synchronized void finishLoading(int day, boolean success) {
+        Long started = loading.get(day);
+        loading.remove(day);
+        if(success) {
+            if(started != null) fetched.put(day, started);
+            failures.delete(day);
+            retryAt.remove(day);
+        } else {
+            int failed = failures.get(day) + 1;
+            failures.put(day, failed);
+            long delay = Math.min(RETRY_MAX_MS, RETRY_MIN_MS << Math.min(failed - 1, 16));
+            retryAt.put(day, SystemClock.elapsedRealtime() + delay);
+        }
+    }
+
+    /** number of fetches, which are running */
+    public synchronized int getLoadingCount() {
+        return loading.size();
+    }
+
+    /** true, if the day was fetched successfully within the given time (measured from the start of the fetch) */
+    public synchronized boolean isFresh(int day, long maxAgeMs) {
+        Long started = fetched.get(day);
+        return started != null && SystemClock.elapsedRealtime() - started < maxAgeMs;
+    }
+
+    /**
+     * set the program list of the day, the list must not be modified afterwards
+     * @return false, if the list didn't change
+     */
+    public boolean set(int day, ArrayList<ORFParser.ORFProgram> programs) {
+        if(programs == null) return false;
+        Snapshot snapshot;
+        do {
+            snapshot = current.get();
+            if(programs.equals(snapshot.get(day))) return false;
+        } while(!current.compareAndSet(snapshot, snapshot.with(day, programs)));
+        //concurrent writers of the same day: the listeners end with the list, which won
+        synchronized (listeners) {
+            ArrayList<ORFParser.ORFProgram> latest = current.get().get(day);
+            for(Listener listener : listeners) {
+                listener.onDayChanged(day, latest);
+            }
+        }
+        return true;
+    }
+
+    /** persistent key of a day: its date (yyyyMMdd) or OFFLINE */
+    public static int keyOf(int day) {
+        if(day == OFFLINE) return OFFLINE;
+        Calendar date = new GregorianCalendar();
+        date.add(Calendar.DAY_OF_MONTH, -day);
+        return dateKey(date);
+    }
+
+    /** day (days before today) of the key, Integer.MIN_VALUE if it's older than MAX_HISTORY */
+    public static int dayOf(int key) {
+        if(key == OFFLINE) return OFFLINE;
+        Calendar date = new GregorianCalendar();
+        for(int day = 0; day <= MAX_HISTORY; day++) {
+            if(dateKey(date) == key) return day;
+            date.add(Calendar.DAY_OF_MONTH, -1);
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private static int dateKey(Calendar date) {
+        return date.get(Calendar.YEAR) * 10000 + (date.get(Calendar.MONTH) + 1) * 100 + date.get(Calendar.DAY_OF_MONTH);
+    }
+}
@@ -20,230 +20,309 @@
  **/
 package com.guruvani.stream;
 
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseExpandableListAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.GregorianCalendar;
+import java.util.HashSet;
 
 /**
- * Expandable list adapter, to show the program list
+ * Sectioned adapter for the single program list (RecyclerView): one expandable section per day
+ * (today, the days before) and one for the offline programs.
+ *
+ * The rows are the section headers followed by the programs of the expanded sections.
+ * Updates of a section are applied incrementally (only the changed range is notified),
+ * the rows are recycled by the RecyclerView.
+ * The days are loaded on demand: the activity is told, when the header of a day is attached to the
+ * list (scrolled into view), not on every bind.
  */
 
 //TODO: bei click farbig hinterlegen...
-public class ProgramExpandableAdapter extends BaseExpandableListAdapter
+public class ProgramExpandableAdapter extends RecyclerView.Adapter<ProgramExpandableAdapter.ViewHolder>
 {
-
-    private String dayLabel;
-    private boolean isToday;
-    private MainActivity activity;
-    private LayoutInflater inflater;
-
-    private ArrayList<ORFParser.ORFProgram> listPrograms;
-    //private ArrayList<ORFParser.ORFProgram> listPrograms[] = new ArrayList[9];
-
-    private boolean isOffline;
-
-    public ProgramExpandableAdapter(boolean offline, boolean today, String dayLabel) {
-        this.isOffline = offline;
-        this.isToday = today;
-        this.dayLabel = dayLabel;
-    }
-
-    public void setInflater(LayoutInflater inflater, MainActivity activity)
-    {
-        this.inflater = inflater;
-        this.activity = activity;
-    }
-
-    // method getChildView is called automatically for each child view.
-    @Override
-    public View getChildView(final int groupPosition, final int childPosition, boolean isLastChild, View convertView, ViewGroup parent)
-    {
-        final ArrayList<ORFParser.ORFProgram> child;
-        if(listPrograms != null) {
-            child = listPrograms;
-        } else {
-            child = null;
+    private final static int TYPE_DAY = 0;
+    private final static int TYPE_PROGRAM = 1;
+
+    private final MainActivity activity;
+    private final LayoutInflater inflater;
+    private final ArrayList<Section> sections = new ArrayList<>();
+
+    //redraw only the rows, whose durations were probed
+    private final DurationProber.Listener durationListener = new DurationProber.Listener() {
+        @Override
+        public void onDurationsChanged(HashSet<String> urls) {
+            for(Section section : sections) {
+                if(!section.expanded) continue;
+                for(int i = 0; i < section.programs.size(); i++) {
+                    if(urls.contains(section.programs.get(i).url)) notifyItemChanged(section.start + 1 + i);
+                }
+            }
         }
-
-        TextView textView = null;
-
-        if (convertView == null) {
-            convertView = inflater.inflate(R.layout.child_view, null);
+    };
+
+    private static class Section {
+        /** days before today, or ProgramDays.OFFLINE **/
+        final int day;
+        /** date of the day (dd.MM.yyyy), computed once per section **/
+        String label;
+        ArrayList<ORFParser.ORFProgram> programs = new ArrayList<>();
+        boolean expanded = false;
+        /** adapter position of the header **/
+        int start;
+
+        Section(int day) {
+            this.day = day;
         }
 
-        // get the textView/ImageView reference and set the title/info
-        textView = (TextView) convertView.findViewById(R.id.textViewTitle);
-        ImageView imageViewDownload = (ImageView) convertView.findViewById(R.id.childDownloadImage);
-        if(isOffline) {
-            textView.setText(child.get(childPosition).dayLabel + " - " + child.get(childPosition).shortTitle);
-            imageViewDownload.setVisibility(View.INVISIBLE);
-        } else {
-            textView.setText(child.get(childPosition).time + " - " + child.get(childPosition).shortTitle);
-
-            // set the ClickListener to handle the click events on the download button
-            imageViewDownload.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    //Create calendar object (today)
-                    Calendar today = new GregorianCalendar();
-                    android.text.format.DateFormat df = new android.text.format.DateFormat();
-                    today.add(Calendar.DAY_OF_MONTH, -groupPosition);
-                    activity.programDownloadClickListener(child.get(childPosition), df.format("dd.MM.yyyy", today).toString());
-                }
-            });
-            imageViewDownload.setVisibility(View.VISIBLE);
+        int rowCount() {
+            return 1 + (expanded ? programs.size() : 0);
         }
-        textView = (TextView) convertView.findViewById(R.id.textViewChildInfo);
-        textView.setText(child.get(childPosition).info);
-
-        // set the ClickListener to handle the click event on child item
-        convertView.setOnClickListener(new View.OnClickListener() {
-
-            @Override
-            public void onClick(View view) {
-                activity.programClickListener(child.get(childPosition));
-            }
-        });
-
-        convertView.setOnLongClickListener(new View.OnLongClickListener() {
-            @Override
-            public boolean onLongClick(View v) {
-                if(groupPosition == 8) {
-                    activity.programLongClickListener(child.get(childPosition),true, "");
-                } else {
-                    //Create calendar object (today)
-                    Calendar today = new GregorianCalendar();
-                    android.text.format.DateFormat df = new android.text.format.DateFormat();
-                    activity.programLongClickListener(child.get(childPosition),false, df.format("dd.MM.yyyy", today).toString());
-                }
-                return true;
-            }
-        });
-        return convertView;
     }
 
-    // method getGroupView is called automatically for each parent item
-    // Implement this method as per your requirement
-    @Override
-    public View getGroupView(int groupPosition, boolean isExpanded, View convertView, ViewGroup parent)
-    {
-
-        if (convertView == null) {
-            convertView = inflater.inflate(R.layout.parent_view, null);
-        }
-
-        //Create calendar object (today)
-        Calendar today = new GregorianCalendar();
-        android.text.format.DateFormat df = new android.text.format.DateFormat();
-
-        TextView itemName = (TextView) convertView.findViewById(R.id.dateName);
-        
-        if(isToday) {
-            if(listPrograms != null) {
-                itemName.setText("  Heute: " + listPrograms.size() + " Beiträge");
+    /** the views of a row, looked up once (the row itself is tagged with the holder) */
+    public static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView title;
+        final TextView info;
+        final ImageView download;
+
+        public ViewHolder(View itemView, boolean isProgram) {
+            super(itemView);
+            if(isProgram) {
+                title = (TextView) itemView.findViewById(R.id.textViewTitle);
+                info = (TextView) itemView.findViewById(R.id.textViewChildInfo);
+                download = (ImageView) itemView.findViewById(R.id.childDownloadImage);
+                download.setTag(this);
             } else {
-                itemName.setText("  Heute: 0 Beiträge");
+                title = (TextView) itemView.findViewById(R.id.dateName);
+                info = null;
+                download = null;
             }
+            itemView.setTag(this);
         }
+    }
 
-        if(isOffline) {
-            if(listPrograms != null) {
-                itemName.setText("  Offline Beiträge: " + listPrograms.size());
+    //one listener for all rows: the row is found via the tag (ViewHolder -> adapter position)
+    private final View.OnClickListener clickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            int position = ((ViewHolder) v.getTag()).getAdapterPosition();
+            if(position == RecyclerView.NO_POSITION) return;
+            Section section = sectionAt(position);
+            int childPosition = position - section.start - 1;
+            if(childPosition < 0) {
+                toggle(section);
+            } else if(v.getId() == R.id.childDownloadImage) {
+                activity.programDownloadClickListener(section.programs.get(childPosition), section.label);
             } else {
-                itemName.setText("  Offline Beiträge: 0");
+                activity.programClickListener(section.programs, childPosition);
             }
         }
-
-        if(!isToday && !isOffline) {
-            if(listPrograms != null) {
-                itemName.setText("  " + dayLabel + ": " + listPrograms.size() + " Beiträge");
+    };
+
+    private final View.OnLongClickListener longClickListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            int position = ((ViewHolder) v.getTag()).getAdapterPosition();
+            if(position == RecyclerView.NO_POSITION) return false;
+            Section section = sectionAt(position);
+            int childPosition = position - section.start - 1;
+            if(childPosition < 0) return false;
+            if(section.day == ProgramDays.OFFLINE) {
+                activity.programLongClickListener(section.programs.get(childPosition), true, "");
             } else {
-                itemName.setText("  " + dayLabel + ": 0 Beiträge");
+                activity.programLongClickListener(section.programs.get(childPosition), false, section.label);
             }
+            return true;
         }
-        return convertView;
+    };
+
+    public ProgramExpandableAdapter(MainActivity activity, LayoutInflater inflater) {
+        this.activity = activity;
+        this.inflater = inflater;
     }
 
-    @Override
-    public Object getChild(int groupPosition, int childPosition)
-    {
-        return null;
+    /** the durations are probed in background, the changed rows are updated */
+    public void attachDurationProber(DurationProber prober) {
+        prober.addListener(durationListener);
     }
 
-    @Override
-    public long getChildId(int groupPosition, int childPosition)
-    {
-        return 0;
+    public void detachDurationProber(DurationProber prober) {
+        prober.removeListener(durationListener);
     }
 
-    @Override
-    public int getChildrenCount(int groupPosition)
-    {
-        if(listPrograms != null) {
-            return listPrograms.size();
+    /** add a (collapsed) section at the end of the list */
+    public void addSection(int day, String label) {
+        Section section = new Section(day);
+        section.label = label;
+        section.start = getItemCount();
+        sections.add(section);
+        notifyItemInserted(section.start);
+    }
+
+    /**
+     * Set the label & programs of a section. Only the rows, which changed, are notified:
+     * the common beginning & end of the old and the new list are kept.
+     */
+    public void setPrograms(int day, String label, ArrayList<ORFParser.ORFProgram> programs) {
+        Section section = findSection(day);
+        if(section == null) return;
+        if(programs == null) programs = new ArrayList<>();
+        ArrayList<ORFParser.ORFProgram> old = section.programs;
+        section.programs = programs;
+        if(label != null) section.label = label;
+        //the header shows the number of programs
+        notifyItemChanged(section.start);
+        if(!section.expanded) return;
+
+        int prefix = 0;
+        int oldSize = old.size();
+        int newSize = programs.size();
+        while(prefix < oldSize && prefix < newSize && old.get(prefix).equals(programs.get(prefix))) prefix++;
+        int suffix = 0;
+        while(suffix < oldSize - prefix && suffix < newSize - prefix
+                && old.get(oldSize - 1 - suffix).equals(programs.get(newSize - 1 - suffix))) suffix++;
+        int oldChanged = oldSize - prefix - suffix;
+        int newChanged = newSize - prefix - suffix;
+        int first = section.start + 1 + prefix;
+
+        updateStarts();
+        int common = Math.min(oldChanged, newChanged);
+        if(common > 0) notifyItemRangeChanged(first, common);
+        if(newChanged > oldChanged) {
+            notifyItemRangeInserted(first + common, newChanged - oldChanged);
+        } else if(oldChanged > newChanged) {
+            notifyItemRangeRemoved(first + common, oldChanged - newChanged);
+        }
+    }
+
+    /** expand/collapse the section of the header at this position */
+    private void toggle(Section section) {
+        section.expanded = !section.expanded;
+        updateStarts();
+        if(section.programs.isEmpty()) return;
+        if(section.expanded) {
+            notifyItemRangeInserted(section.start + 1, section.programs.size());
         } else {
-            return 0;
+            notifyItemRangeRemoved(section.start + 1, section.programs.size());
         }
     }
 
-    @Override
-    public Object getGroup(int groupPosition)
-    {
+    /** the days (not the offline section), which are expanded or (partly) within the given positions */
+    public ArrayList<Integer> getActiveDays(int first, int last) {
+        ArrayList<Integer> days = new ArrayList<>();
+        for(int i = 0; i < sections.size(); i++) {
+            Section section = sections.get(i);
+            if(section.day == ProgramDays.OFFLINE) continue;
+            boolean visible = section.start <= last && section.start + section.rowCount() > first;
+            if(section.expanded || visible) days.add(section.day);
+        }
+        return days;
+    }
+
+    private Section findSection(int day) {
+        for(int i = 0; i < sections.size(); i++) {
+            if(sections.get(i).day == day) return sections.get(i);
+        }
         return null;
     }
 
-    @Override
-    public int getGroupCount()
-    {
-        return 1;
+    /** section of the given adapter position (binary search over the header positions) */
+    private Section sectionAt(int position) {
+        int low = 0;
+        int high = sections.size() - 1;
+        while(low < high) {
+            int mid = (low + high + 1) / 2;
+            if(sections.get(mid).start <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return sections.get(low);
     }
 
-    @Override
-    public void onGroupCollapsed(int groupPosition)
-    {
-        super.onGroupCollapsed(groupPosition);
+    private void updateStarts() {
+        int start = 0;
+        for(int i = 0; i < sections.size(); i++) {
+            Section section = sections.get(i);
+            section.start = start;
+            start += section.rowCount();
+        }
     }
 
     @Override
-    public void onGroupExpanded(int groupPosition)
-    {
-        super.onGroupExpanded(groupPosition);
+    public int getItemCount() {
+        if(sections.isEmpty()) return 0;
+        Section last = sections.get(sections.size() - 1);
+        return last.start + last.rowCount();
     }
 
     @Override
-    public long getGroupId(int groupPosition)
-    {
-        return 0;
+    public int getItemViewType(int position) {
+        return sectionAt(position).start == position ? TYPE_DAY : TYPE_PROGRAM;
     }
 
     @Override
-    public boolean hasStableIds()
-    {
-        return false;
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        ViewHolder holder;
+        if(viewType == TYPE_DAY) {
+            holder = new ViewHolder(inflater.inflate(R.layout.parent_view, parent, false), false);
+        } else {
+            holder = new ViewHolder(inflater.inflate(R.layout.child_view, parent, false), true);
+            holder.download.setOnClickListener(clickListener);
+            holder.itemView.setOnLongClickListener(longClickListener);
+        }
+        holder.itemView.setOnClickListener(clickListener);
+        return holder;
     }
 
     @Override
-    public boolean isChildSelectable(int groupPosition, int childPosition)
-    {
-        return true;
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        Section section = sectionAt(position);
+        if(position == section.start) {
+            bindDay(holder, section);
+        } else {
+            bindProgram(holder, section, position - section.start - 1);
+        }
     }
 
-    public void update(ArrayList<ORFParser.ORFProgram> programList) {
-        this.listPrograms = programList;
+    /** a day header was scrolled into view: its list (& the next one) is loaded, if it's missing */
+    @Override
+    public void onViewAttachedToWindow(ViewHolder holder) {
+        if(holder.download != null) return;
+        int position = holder.getAdapterPosition();
+        if(position == RecyclerView.NO_POSITION) return;
+        activity.onSectionShown(sectionAt(position).day);
     }
 
-    public void setDayLabel(String label) {
-        this.dayLabel = label;
+    private void bindDay(ViewHolder holder, Section section) {
+        if(section.day == 0) {
+            holder.title.setText("  Heute: " + section.programs.size() + " Beiträge");
+        } else if(section.day == ProgramDays.OFFLINE) {
+            holder.title.setText("  Offline Beiträge: " + section.programs.size());
+        } else {
+            holder.title.setText("  " + section.label + ": " + section.programs.size() + " Beiträge");
+        }
     }
 
-    public String getDayLabel() {
-        return this.dayLabel;
+    private void bindProgram(ViewHolder holder, Section section, int childPosition) {
+        ORFParser.ORFProgram program = section.programs.get(childPosition);
+        if(section.day == ProgramDays.OFFLINE) {
+            holder.title.setText(program.dayLabel + " - " + program.shortTitle);
+            holder.download.setVisibility(View.INVISIBLE);
+        } else {
+            long duration = activity.getDurationProber().probeDuration(program.url);
+            if(duration > 0) {
+                holder.title.setText(program.time + " - " + program.shortTitle + " (" + duration / 60000 + " min)");
+            } else {
+                holder.title.setText(program.time + " - " + program.shortTitle);
+            }
+            holder.download.setVisibility(View.VISIBLE);
+        }
+        holder.info.setText(program.info);
     }
 }
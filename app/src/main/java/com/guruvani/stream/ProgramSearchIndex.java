@@ -0,0 +1,366 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Full text search over the known programs (all loaded days & the offline programs).
+ *
+ * The words of title, short title and info are normalized (lower case, without diacritics) and kept
+ * in a sorted inverted index: word -> postings (list key, position in the list). Every word of a
+ * query is matched as prefix, all words have to match.
+ * The index is updated per list, when a list of ProgramDays changes. The normalized words of the
+ * programs are persisted (search.idx), so the words aren't extracted again after a restart.
+ * All changes (& the file access) are done on an own background thread, search() is synchronized.
+ */
+public class ProgramSearchIndex implements ProgramDays.Listener {
+    private final static int MAGIC = 0x4F453149; //"OE1I"
+    private final static int VERSION = 2;
+    /** the changes of a refresh are written together **/
+    private final static long WRITE_DELAY_MS = 5000;
+    public final static int MAX_RESULTS = 100;
+
+    private final File file;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    //guarded by this
+    private final TreeMap<String, HashSet<Long>> words = new TreeMap<>();
+    private final SparseArray<Block> blocks = new SparseArray<>();
+    //index thread only
+    private boolean writeScheduled = false;
+
+    /** an indexed list & the words of each program */
+    private static class Block {
+        final ArrayList<ORFParser.ORFProgram> programs;
+        final String[][] words;
+
+        Block(ArrayList<ORFParser.ORFProgram> programs, String[][] words) {
+            this.programs = programs;
+            this.words = words;
+        }
+    }
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            writeScheduled = false;
+            writeIndex();
+        }
+    };
+
+    //newest list first (dates as yyyyMMdd, OFFLINE last), then in list order
+    private final static Comparator<Long> RESULT_ORDER = new Comparator<Long>() {
+        @Override
+        public int compare(Long a, Long b) {
+            int keyA = (int) (a >> 32);
+            int keyB = (int) (b >> 32);
+            if(keyA != keyB) return keyA > keyB ? -1 : 1;
+            int posA = (int) (long) a;
+            int posB = (int) (long) b;
+            return posA < posB ? -1 : (posA == posB ? 0 : 1);
+        }
+    };
+
+    public ProgramSearchIndex(File file) {
+        this.file = file;
+        thread = new HandlerThread("ProgramSearchIndex", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Read the persisted index in background. Lists of the program days, which aren't in the file
+     * (or changed in the meantime), are indexed afterwards.
+     */
+    public void load(final ProgramDays days) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                ProgramDays.Snapshot snapshot = days.snapshot();
+                readIndex(snapshot);
+                boolean changed = false;
+                for(int day : snapshot.getDays()) {
+                    ArrayList<ORFParser.ORFProgram> programs = snapshot.get(day);
+                    int key = ProgramDays.keyOf(day);
+                    synchronized (ProgramSearchIndex.this) {
+                        if(blocks.get(key) != null && blocks.get(key).programs == programs) continue;
+                    }
+                    index(key, programs);
+                    changed = true;
+                }
+                if(changed) scheduleWrite();
+            }
+        });
+    }
+
+    @Override
+    public void onDayChanged(int day, final ArrayList<ORFParser.ORFProgram> programs) {
+        final int key = ProgramDays.keyOf(day);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                index(key, programs);
+                scheduleWrite();
+            }
+        });
+    }
+
+    /** programs, which match all words of the query (as prefix), at most MAX_RESULTS */
+    public synchronized ArrayList<ORFParser.ORFProgram> search(String query) {
+        ArrayList<ORFParser.ORFProgram> results = new ArrayList<>();
+        HashSet<Long> matches = null;
+        for(String word : tokenize(query)) {
+            HashSet<Long> wordMatches = new HashSet<>();
+            for(HashSet<Long> postings : words.subMap(word, word + Character.MAX_VALUE).values()) {
+                wordMatches.addAll(postings);
+            }
+            if(matches == null) {
+                matches = wordMatches;
+            } else {
+                matches.retainAll(wordMatches);
+            }
+            if(matches.isEmpty()) return results;
+        }
+        if(matches == null) return results;
+
+        Long[] sorted = matches.toArray(new Long[matches.size()]);
+        Arrays.sort(sorted, RESULT_ORDER);
+        for(int i = 0; i < sorted.length && results.size() < MAX_RESULTS; i++) {
+            Block block = blocks.get((int) (sorted[i] >> 32));
+            results.add(block.programs.get((int) (long) sorted[i]));
+        }
+        return results;
+    }
+
+    /** write the pending changes now & stop the background thread */
+    public void close() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(writeScheduled) {
+                    handler.removeCallbacks(write);
+                    write.run();
+                }
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    private void scheduleWrite() {
+        if(writeScheduled) return;
+        writeScheduled = true;
+        handler.postDelayed(write, WRITE_DELAY_MS);
+    }
+
+    //extract the words outside of the lock, a search isn't blocked meanwhile
+    private void index(int key, ArrayList<ORFParser.ORFProgram> programs) {
+        String[][] programWords = new String[programs.size()][];
+        for(int i = 0; i < programWords.length; i++) {
+            ORFParser.ORFProgram program = programs.get(i);
+            LinkedHashSet<String> distinct = new LinkedHashSet<>();
+            distinct.addAll(tokenize(program.title));
+            distinct.addAll(tokenize(program.shortTitle));
+            distinct.addAll(tokenize(program.info));
+            programWords[i] = distinct.toArray(new String[distinct.size()]);
+        }
+        synchronized (this) {
+            removeBlock(key);
+            addBlock(key, new Block(programs, programWords));
+        }
+    }
+
+    //guarded by this
+    private void addBlock(int key, Block block) {
+        blocks.put(key, block);
+        for(int i = 0; i < block.words.length; i++) {
+            long posting = posting(key, i);
+            for(String word : block.words[i]) {
+                HashSet<Long> postings = words.get(word);
+                if(postings == null) {
+                    postings = new HashSet<>();
+                    words.put(word, postings);
+                }
+                postings.add(posting);
+            }
+        }
+    }
+
+    //guarded by this
+    private void removeBlock(int key) {
+        Block block = blocks.get(key);
+        if(block == null) return;
+        blocks.remove(key);
+        for(int i = 0; i < block.words.length; i++) {
+            long posting = posting(key, i);
+            for(String word : block.words[i]) {
+                HashSet<Long> postings = words.get(word);
+                if(postings == null) continue;
+                postings.remove(posting);
+                if(postings.isEmpty()) words.remove(word);
+            }
+        }
+    }
+
+    private static long posting(int key, int position) {
+        return ((long) key << 32) | position;
+    }
+
+    private void readIndex(ProgramDays.Snapshot days) {
+        if(!file.exists()) return;
+        long start = System.currentTimeMillis();
+        int count = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            int blockCount = in.readInt();
+            for(int b = 0; b < blockCount; b++) {
+                int key = in.readInt();
+                int hash = in.readInt();
+                String[][] programWords = new String[in.readInt()][];
+                for(int i = 0; i < programWords.length; i++) {
+                    programWords[i] = new String[in.readInt()];
+                    for(int w = 0; w < programWords[i].length; w++) {
+                        programWords[i][w] = in.readUTF();
+                    }
+                }
+                //only valid, if the list is still the same
+                int day = ProgramDays.dayOf(key);
+                ArrayList<ORFParser.ORFProgram> programs = day == Integer.MIN_VALUE ? null : days.get(day);
+                if(programs == null || programs.size() != programWords.length || contentHash(programs) != hash) continue;
+                synchronized (this) {
+                    addBlock(key, new Block(programs, programWords));
+                }
+                count += programWords.length;
+            }
+        } catch (IOException e) {
+            Log.w("SEARCHINDEX", "Read failed: " + e.getMessage());
+        } finally {
+            if(in != null) {
+                try { in.close(); } catch (IOException ignored) { }
+            }
+        }
+        Log.d("SEARCHINDEX", count + " programs loaded in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void writeIndex() {
+        SparseArray<Block> current;
+        synchronized (this) {
+            //days, which are no longer shown, are dropped
+            for(int i = blocks.size() - 1; i >= 0; i--) {
+                if(ProgramDays.dayOf(blocks.keyAt(i)) == Integer.MIN_VALUE) removeBlock(blocks.keyAt(i));
+            }
+            current = blocks.clone();
+        }
+        //the blocks are immutable, they are written outside of the lock
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(current.size());
+            for(int b = 0; b < current.size(); b++) {
+                Block block = current.valueAt(b);
+                out.writeInt(current.keyAt(b));
+                out.writeInt(contentHash(block.programs));
+                out.writeInt(block.words.length);
+                for(String[] programWords : block.words) {
+                    out.writeInt(programWords.length);
+                    for(String word : programWords) {
+                        out.writeUTF(word);
+                    }
+                }
+            }
+            out.close();
+            out = null;
+            if(!temp.renameTo(file)) Log.w("SEARCHINDEX", "Rename of " + temp + " failed");
+        } catch (IOException e) {
+            Log.w("SEARCHINDEX", "Write failed: " + e.getMessage());
+        } finally {
+            if(out != null) {
+                try { out.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    /** hash over the indexed texts: a block is reused only, if the words are still the same */
+    private static int contentHash(ArrayList<ORFParser.ORFProgram> programs) {
+        int hash = programs.size();
+        for(ORFParser.ORFProgram program : programs) {
+            hash = 31 * hash + textHash(program.title);
+            hash = 31 * hash + textHash(program.shortTitle);
+            hash = 31 * hash + textHash(program.info);
+        }
+        return hash;
+    }
+
+    private static int textHash(String text) {
+        return text != null ? text.hashCode() : 0;
+    }
+
+    /** the distinct normalized words of the text: lower case, without diacritics (ß -> ss) */
+    static ArrayList<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<>();
+        if(text == null) return tokens;
+        String decomposed = Normalizer.normalize(text.toLowerCase(Locale.GERMAN), Normalizer.Form.NFD);
+        StringBuilder word = new StringBuilder();
+        for(int i = 0; i <= decomposed.length(); i++) {
+            char c = i < decomposed.length() ? decomposed.charAt(i) : ' ';
+            if(Character.getType(c) == Character.NON_SPACING_MARK) continue;
+            if(c == 'ß') {
+                word.append("ss");
+            } else if(Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if(word.length() > 0) {
+                String token = word.toString();
+                if(!tokens.contains(token)) tokens.add(token);
+                word.setLength(0);
+            }
+        }
+        return tokens;
+    }
+}
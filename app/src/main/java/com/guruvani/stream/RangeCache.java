@@ -0,0 +1,333 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sparse on-disk cache for remote media files.
+ *
+ * Every URL gets a data file (written at the original byte offsets) and a small map file,
+ * containing the total length and a bitmap of the blocks which are already fetched.
+ * If the cache grows beyond the given size, the least recently used entries are removed
+ * (entries which are currently streamed are never evicted).
+ */
+public class RangeCache {
+    /** size of one cached block, a block is only marked if it was fetched completely **/
+    public final static int BLOCK_SIZE = 32 * 1024;
+
+    private final static int MAP_VERSION = 1;
+    private final static String DATA_SUFFIX = ".data";
+    private final static String MAP_SUFFIX = ".map";
+
+    private final File cacheDir;
+    private final long maxBytes;
+    private long usedBytes = 0;
+    //access ordered -> iteration starts with the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public RangeCache(File cacheDir, long maxBytes) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        //noinspection ResultOfMethodCallIgnored
+        cacheDir.mkdirs();
+        loadEntries();
+    }
+
+    /**
+     * Open (or create) the cache entry for the given URL.
+     * Each call must be balanced by a call to release()
+     */
+    public synchronized Entry open(String url) throws IOException {
+        String key = keyForUrl(url);
+        Entry entry = entries.get(key);
+        if(entry == null) {
+            entry = new Entry(new File(cacheDir, key + DATA_SUFFIX), new File(cacheDir, key + MAP_SUFFIX));
+            entries.put(key, entry);
+        }
+        entry.refCount++;
+        return entry;
+    }
+
+    /** release an entry, the block map is persisted if nobody is using it anymore */
+    public synchronized void release(Entry entry) {
+        entry.refCount--;
+        if(entry.refCount <= 0) {
+            entry.refCount = 0;
+            entry.save();
+            entry.closeFile();
+        }
+        evict();
+    }
+
+    /** store one complete block and mark it as available */
+    public void putBlock(Entry entry, int block, byte[] buffer, int length) throws IOException {
+        boolean added = entry.writeBlock(block, buffer, length);
+        if(added) {
+            synchronized (this) {
+                //the same amount, which cachedBytes() returns for this block
+                usedBytes += entry.blockLength(block);
+                evict();
+            }
+        }
+    }
+
+    /** set the length of the remote file, a different length drops all cached blocks of the entry */
+    public synchronized void setLength(Entry entry, long length) {
+        usedBytes -= entry.setLength(length);
+    }
+
+    /** size of all cached blocks (the eviction limit is checked against it) */
+    synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /** persist all block maps, called if the service is destroyed */
+    public synchronized void flush() {
+        for(Entry entry : entries.values()) {
+            entry.save();
+            entry.closeFile();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(usedBytes > maxBytes && it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if(entry.refCount > 0) continue;
+            usedBytes -= entry.cachedBytes();
+            entry.delete();
+            it.remove();
+            Log.d("RANGECACHE", "Evicted: " + entry.dataFile.getName());
+        }
+    }
+
+    private void loadEntries() {
+        File[] files = cacheDir.listFiles();
+        if(files == null) return;
+        //sort by modification time, so the LRU order survives a restart
+        Arrays.sort(files, new java.util.Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for(File file : files) {
+            String name = file.getName();
+            if(!name.endsWith(MAP_SUFFIX)) continue;
+            String key = name.substring(0, name.length() - MAP_SUFFIX.length());
+            Entry entry = new Entry(new File(cacheDir, key + DATA_SUFFIX), file);
+            if(entry.load()) {
+                entries.put(key, entry);
+                usedBytes += entry.cachedBytes();
+            } else {
+                entry.delete();
+            }
+        }
+        evict();
+    }
+
+    static String keyForUrl(String url) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for(byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return String.valueOf(url.hashCode() & 0x7fffffff);
+        }
+    }
+
+    /**
+     * One cached URL: data file + bitmap of fetched blocks
+     */
+    public static class Entry {
+        private final File dataFile;
+        private final File mapFile;
+        private RandomAccessFile file;
+        private long length = -1;
+        private long[] bitmap = new long[0];
+        private int refCount = 0;
+        public String contentType = "audio/mpeg";
+
+        Entry(File dataFile, File mapFile) {
+            this.dataFile = dataFile;
+            this.mapFile = mapFile;
+        }
+
+        /** total length of the remote file, -1 if not known yet */
+        public synchronized long getLength() {
+            return length;
+        }
+
+        /** @return the bytes, which were dropped (see RangeCache.setLength) */
+        synchronized long setLength(long length) {
+            if(this.length == length) return 0;
+            long dropped = cachedBytes();
+            this.length = length;
+            //a different length means a different file -> forget everything
+            bitmap = new long[(blockCount() + 63) / 64];
+            return dropped;
+        }
+
+        public synchronized int blockCount() {
+            if(length < 0) return 0;
+            return (int)((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        /** length of the given block, only the last one may be shorter than BLOCK_SIZE */
+        public synchronized int blockLength(int block) {
+            return (int)Math.min(BLOCK_SIZE, length - (long)block * BLOCK_SIZE);
+        }
+
+        public synchronized boolean hasBlock(int block) {
+            int word = block >> 6;
+            return word < bitmap.length && (bitmap[word] & (1L << (block & 63))) != 0;
+        }
+
+        public synchronized boolean isComplete() {
+            int count = blockCount();
+            for(int i = 0; i < count; i++) {
+                if(!hasBlock(i)) return false;
+            }
+            return true;
+        }
+
+        /** read a cached block into the buffer, returns false if the block is not (or no longer) available */
+        public synchronized boolean readBlock(int block, byte[] buffer, int length) throws IOException {
+            if(!hasBlock(block)) return false;
+            openFile();
+            file.seek((long)block * BLOCK_SIZE);
+            file.readFully(buffer, 0, length);
+            return true;
+        }
+
+        synchronized boolean writeBlock(int block, byte[] buffer, int length) throws IOException {
+            if(hasBlock(block) || (block >> 6) >= bitmap.length) return false;
+            openFile();
+            file.seek((long)block * BLOCK_SIZE);
+            file.write(buffer, 0, length);
+            bitmap[block >> 6] |= 1L << (block & 63);
+            return true;
+        }
+
+        /** size of the fetched blocks, the last block is counted with its real (shorter) length */
+        synchronized long cachedBytes() {
+            long count = 0;
+            for(long word : bitmap) {
+                count += Long.bitCount(word);
+            }
+            long bytes = count * BLOCK_SIZE;
+            int last = blockCount() - 1;
+            if(last >= 0 && hasBlock(last)) bytes -= BLOCK_SIZE - blockLength(last);
+            return bytes;
+        }
+
+        private void openFile() throws IOException {
+            if(file == null) {
+                file = new RandomAccessFile(dataFile, "rw");
+            }
+        }
+
+        synchronized void closeFile() {
+            if(file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    Log.w("RANGECACHE", "Close failed: " + e.getMessage());
+                }
+                file = null;
+            }
+        }
+
+        synchronized void save() {
+            if(length < 0) return;
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new FileOutputStream(mapFile));
+                out.writeInt(MAP_VERSION);
+                out.writeInt(BLOCK_SIZE);
+                out.writeLong(length);
+                out.writeUTF(contentType);
+                out.writeInt(bitmap.length);
+                for(long word : bitmap) {
+                    out.writeLong(word);
+                }
+            } catch (IOException e) {
+                Log.w("RANGECACHE", "Map write failed: " + e.getMessage());
+            } finally {
+                if(out != null) {
+                    try { out.close(); } catch (IOException ignored) { }
+                }
+            }
+        }
+
+        synchronized boolean load() {
+            if(!dataFile.exists()) return false;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(mapFile));
+                if(in.readInt() != MAP_VERSION || in.readInt() != BLOCK_SIZE) return false;
+                length = in.readLong();
+                contentType = in.readUTF();
+                bitmap = new long[in.readInt()];
+                for(int i = 0; i < bitmap.length; i++) {
+                    bitmap[i] = in.readLong();
+                }
+                return bitmap.length == (blockCount() + 63) / 64;
+            } catch (IOException e) {
+                return false;
+            } finally {
+                if(in != null) {
+                    try { in.close(); } catch (IOException ignored) { }
+                }
+            }
+        }
+
+        synchronized void delete() {
+            closeFile();
+            //noinspection ResultOfMethodCallIgnored
+            dataFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            mapFile.delete();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * Lockscreen/remote control session of the media service (MediaSessionCompat: a media session
+ * on API 21+, a RemoteControlClient before). The controls are only shown, while the service
+ * holds the audio focus.
+ *
+ * The session is activated once per playback session (load -> stop), metadata and the transport
+ * state are only pushed on changes. The transport controls & the media buttons are forwarded
+ * as commands to the MediaService, like the MediaButtonReceiver does.
+ */
+public class RemoteControlSession {
+    private final static long ACTIONS = PlaybackStateCompat.ACTION_PLAY_PAUSE
+            | PlaybackStateCompat.ACTION_PLAY
+            | PlaybackStateCompat.ACTION_PAUSE
+            | PlaybackStateCompat.ACTION_STOP
+            | PlaybackStateCompat.ACTION_SKIP_TO_NEXT
+            | PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS;
+
+    private final Context context;
+    private final MediaSessionCompat session;
+    private boolean active = false;
+    private String state;
+    private String title;
+    private long duration = -1;
+
+    public RemoteControlSession(Context context) {
+        this.context = context;
+        ComponentName receiver = new ComponentName(context.getPackageName(), MediaButtonReceiver.class.getName());
+        Intent mediaButtonIntent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+        mediaButtonIntent.setComponent(receiver);
+        PendingIntent mediaPendingIntent = PendingIntent.getBroadcast(context, 0, mediaButtonIntent, 0);
+        session = new MediaSessionCompat(context, "GuruVani", receiver, mediaPendingIntent);
+        session.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
+        session.setCallback(new MediaSessionCompat.Callback() {
+            @Override
+            public void onPlay() {
+                command(MediaService.ACTION_PLAY);
+            }
+
+            @Override
+            public void onPause() {
+                command(MediaService.ACTION_PAUSE);
+            }
+
+            @Override
+            public void onStop() {
+                command(MediaService.ACTION_STOP);
+            }
+
+            @Override
+            public void onSkipToNext() {
+                command(MediaService.ACTION_NEXT);
+            }
+
+            @Override
+            public void onSkipToPrevious() {
+                command(MediaService.ACTION_PREVIOUS);
+            }
+        });
+    }
+
+    private void command(String action) {
+        context.startService(new Intent(context, MediaService.class).setAction(action));
+    }
+
+    public boolean isRegistered() {
+        return active;
+    }
+
+    /** activate the session, does nothing if already active */
+    public void register() {
+        if(active) return;
+        active = true;
+        state = null;
+        title = null;
+        duration = -1;
+        session.setActive(true);
+    }
+
+    public void unregister() {
+        if(!active) return;
+        active = false;
+        session.setPlaybackState(new PlaybackStateCompat.Builder()
+                .setState(PlaybackStateCompat.STATE_STOPPED, PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN, 0f)
+                .build());
+        session.setActive(false);
+    }
+
+    /** the service is destroyed, the session can't be used afterwards */
+    public void release() {
+        unregister();
+        session.release();
+    }
+
+    /** set title & duration (ms, <= 0 if unknown), only pushed if something changed */
+    public void setMetadata(String title, long duration) {
+        if(!active) return;
+        if(title == null) title = "";
+        if(title.equals(this.title) && duration == this.duration) return;
+        this.title = title;
+        this.duration = duration;
+        MediaMetadataCompat.Builder metadata = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title)
+                .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, "Guru Vani");
+        if(duration > 0) metadata.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration);
+        session.setMetadata(metadata.build());
+    }
+
+    /** set the transport state (one of MediaService.MEDIA_STATE_*), only pushed on changes */
+    public void setState(String mediaState) {
+        if(!active || mediaState.equals(state)) return;
+        state = mediaState;
+        int playbackState;
+        switch(mediaState) {
+            case MediaService.MEDIA_STATE_PLAYING:
+                playbackState = PlaybackStateCompat.STATE_PLAYING;
+                break;
+            case MediaService.MEDIA_STATE_PAUSED:
+                playbackState = PlaybackStateCompat.STATE_PAUSED;
+                break;
+            default:
+                playbackState = PlaybackStateCompat.STATE_STOPPED;
+                break;
+        }
+        session.setPlaybackState(new PlaybackStateCompat.Builder()
+                .setActions(ACTIONS)
+                .setState(playbackState, PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN,
+                        playbackState == PlaybackStateCompat.STATE_PLAYING ? 1f : 0f)
+                .build());
+    }
+}
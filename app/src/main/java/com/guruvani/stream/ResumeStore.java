@@ -0,0 +1,220 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+/**
+ * Persisted resume positions of the programs, keyed by the identity of the program (see keyOf),
+ * so a program and its offline copy share one position.
+ *
+ * The positions are kept in memory and written to a small file of fixed size records
+ * (url hash, position, length, update time). Updates are coalesced: dirty records are
+ * written at most every WRITE_INTERVAL_MS, or immediately via flush() (pause/stop).
+ * All file writes are done on an own background thread, update() never blocks.
+ */
+public class ResumeStore {
+    /** coalescing interval of the position updates **/
+    public final static long WRITE_INTERVAL_MS = 10000;
+    private final static int MAX_RECORDS = 512;
+    private final static int RECORD_SIZE = 32;
+
+    private final File file;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    //guarded by this
+    private final HashMap<Long, Record> records = new HashMap<>();
+    private final HashMap<Long, Record> dirty = new HashMap<>();
+    private boolean writeScheduled = false;
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            writeDirty();
+        }
+    };
+
+    private static class Record {
+        final long key;
+        final int slot;
+        long position;
+        long length;
+        long updated;
+
+        Record(long key, int slot) {
+            this.key = key;
+            this.slot = slot;
+        }
+    }
+
+    public ResumeStore(File file) {
+        this.file = file;
+        read();
+        thread = new HandlerThread("ResumeStore", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * key of a program: its id & day label (the same for the remote program and the offline copy),
+     * the played URL if the program isn't known
+     */
+    public static String keyOf(ORFParser.ORFProgram program, String url) {
+        if(program == null || program.dayLabel == null) return url;
+        return "program:" + program.id + "/" + program.dayLabel;
+    }
+
+    /** saved position (ms) of the given key, 0 if there is none */
+    public synchronized long getPosition(String programKey) {
+        Record record = records.get(hash(programKey));
+        return record != null ? record.position : 0;
+    }
+
+    /** remember the current position, it's written with the next coalesced write */
+    public synchronized void update(String programKey, long position, long length) {
+        long key = hash(programKey);
+        Record record = records.get(key);
+        if(record == null) {
+            record = new Record(key, freeSlot());
+            records.put(key, record);
+        }
+        if(record.position == position && record.length == length) return;
+        record.position = position;
+        record.length = length;
+        record.updated = System.currentTimeMillis();
+        dirty.put(key, record);
+        if(!writeScheduled) {
+            writeScheduled = true;
+            handler.postDelayed(write, WRITE_INTERVAL_MS);
+        }
+    }
+
+    /** the program was played to the end: start from the beginning next time */
+    public void clear(String programKey) {
+        update(programKey, 0, 0);
+    }
+
+    /** write the pending updates now (in background) */
+    public synchronized void flush() {
+        if(dirty.isEmpty()) return;
+        handler.removeCallbacks(write);
+        writeScheduled = true;
+        handler.post(write);
+    }
+
+    /** write the pending updates & stop the background thread */
+    public void close() {
+        flush();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    //the slot of a new record: a free one or the least recently updated one
+    private int freeSlot() {
+        if(records.size() < MAX_RECORDS) return records.size();
+        Record oldest = null;
+        for(Record record : records.values()) {
+            if(oldest == null || record.updated < oldest.updated) oldest = record;
+        }
+        //noinspection ConstantConditions
+        records.remove(oldest.key);
+        dirty.remove(oldest.key);
+        return oldest.slot;
+    }
+
+    private void writeDirty() {
+        Record[] pending;
+        long[][] values;
+        synchronized (this) {
+            writeScheduled = false;
+            if(dirty.isEmpty()) return;
+            pending = dirty.values().toArray(new Record[dirty.size()]);
+            //copy the values, the records may change while writing
+            values = new long[pending.length][];
+            for(int i = 0; i < pending.length; i++) {
+                Record r = pending[i];
+                values[i] = new long[] { r.key, r.position, r.length, r.updated };
+            }
+            dirty.clear();
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            for(int i = 0; i < pending.length; i++) {
+                raf.seek((long) pending[i].slot * RECORD_SIZE);
+                for(long value : values[i]) raf.writeLong(value);
+            }
+        } catch (IOException e) {
+            Log.w("RESUMESTORE", "Write failed: " + e.getMessage());
+        } finally {
+            if(raf != null) {
+                try { raf.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private void read() {
+        if(!file.exists()) return;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            int count = (int) Math.min(MAX_RECORDS, raf.length() / RECORD_SIZE);
+            for(int slot = 0; slot < count; slot++) {
+                Record record = new Record(raf.readLong(), slot);
+                record.position = raf.readLong();
+                record.length = raf.readLong();
+                record.updated = raf.readLong();
+                records.put(record.key, record);
+            }
+        } catch (IOException e) {
+            Log.w("RESUMESTORE", "Read failed: " + e.getMessage());
+        } finally {
+            if(raf != null) {
+                try { raf.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    //64bit FNV-1a
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Binary snapshot of the last known program lists (all days & the offline list), so the lists
+ * can be shown right after a cold start, before the refresh has fetched anything.
+ *
+ * Each list is stored as an own block, keyed by its date (yyyyMMdd, stable across days) or OFFLINE.
+ * Only the changed lists are encoded again (update), the others are written from the cached blocks.
+ * The file is rewritten WRITE_DELAY_MS after the last change (coalesced) on a background thread,
+ * via a temporary file, so an interrupted write never destroys the old snapshot.
+ */
+public class ScheduleSnapshot implements ProgramDays.Listener {
+    private final static int MAGIC = 0x4F453153; //"OE1S"
+    private final static int VERSION = 2;
+    /** the updates of one refresh are written together **/
+    private final static long WRITE_DELAY_MS = 2000;
+
+    private final File file;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    //guarded by this
+    private final SparseArray<byte[]> blocks = new SparseArray<>();
+    private boolean writeScheduled = false;
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            writeBlocks();
+        }
+    };
+
+    public ScheduleSnapshot(File file) {
+        this.file = file;
+        thread = new HandlerThread("ScheduleSnapshot", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /** read the snapshot into the (empty) program days, lists of days out of range are dropped */
+    public void load(ProgramDays days) {
+        if(!file.exists()) return;
+        long start = System.currentTimeMillis();
+        int lists = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                int key = in.readInt();
+                byte[] block = new byte[in.readInt()];
+                in.readFully(block);
+                int day = ProgramDays.dayOf(key);
+                if(day == Integer.MIN_VALUE) continue;
+                synchronized (this) {
+                    blocks.put(key, block);
+                }
+                days.set(day, decode(block));
+                lists++;
+            }
+        } catch (IOException e) {
+            Log.w("SNAPSHOT", "Read failed: " + e.getMessage());
+        } finally {
+            if(in != null) {
+                try { in.close(); } catch (IOException ignored) { }
+            }
+        }
+        Log.d("SNAPSHOT", lists + " lists loaded in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /** a list changed: encode it & schedule the write */
+    @Override
+    public void onDayChanged(int day, ArrayList<ORFParser.ORFProgram> programs) {
+        byte[] block;
+        try {
+            block = encode(programs);
+        } catch (IOException e) {
+            //the old block of this day is kept
+            Log.w("SNAPSHOT", "Encoding day " + day + " failed: " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            blocks.put(ProgramDays.keyOf(day), block);
+            if(!writeScheduled) {
+                writeScheduled = true;
+                handler.postDelayed(write, WRITE_DELAY_MS);
+            }
+        }
+    }
+
+    /** write the pending changes now & stop the background thread */
+    public void close() {
+        synchronized (this) {
+            if(writeScheduled) {
+                handler.removeCallbacks(write);
+                handler.post(write);
+            }
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myLooper().quit();
+            }
+        });
+    }
+
+    private void writeBlocks() {
+        SparseArray<byte[]> current;
+        synchronized (this) {
+            writeScheduled = false;
+            //days, which are no longer shown, aren't written again
+            for(int i = blocks.size() - 1; i >= 0; i--) {
+                if(ProgramDays.dayOf(blocks.keyAt(i)) == Integer.MIN_VALUE) blocks.removeAt(i);
+            }
+            current = blocks.clone();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(current.size());
+            for(int i = 0; i < current.size(); i++) {
+                out.writeInt(current.keyAt(i));
+                out.writeInt(current.valueAt(i).length);
+                out.write(current.valueAt(i));
+            }
+            out.close();
+            out = null;
+            if(!temp.renameTo(file)) Log.w("SNAPSHOT", "Rename of " + temp + " failed");
+        } catch (IOException e) {
+            Log.w("SNAPSHOT", "Write failed: " + e.getMessage());
+        } finally {
+            if(out != null) {
+                try { out.close(); } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    private static byte[] encode(ArrayList<ORFParser.ORFProgram> programs) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(programs.size() * 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(programs.size());
+        for(ORFParser.ORFProgram program : programs) {
+            out.writeInt(program.id);
+            writeString(out, program.time);
+            writeString(out, program.title);
+            writeString(out, program.shortTitle);
+            writeString(out, program.info);
+            writeString(out, program.url);
+            writeString(out, program.dayLabel);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static ArrayList<ORFParser.ORFProgram> decode(byte[] block) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        int count = in.readInt();
+        ArrayList<ORFParser.ORFProgram> programs = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            ORFParser.ORFProgram program = new ORFParser.ORFProgram();
+            program.id = in.readInt();
+            program.time = readString(in);
+            program.title = readString(in);
+            program.shortTitle = readString(in);
+            program.info = readString(in);
+            program.url = readString(in);
+            program.dayLabel = readString(in);
+            programs.add(program);
+        }
+        return programs;
+    }
+
+    //nullable strings: length (-1: null) + UTF-8, writeUTF() is limited to 64KB (long descriptions)
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if(value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
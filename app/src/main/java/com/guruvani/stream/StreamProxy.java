@@ -0,0 +1,638 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Loopback HTTP proxy between the VLC player and the remote on-demand files.
+ *
+ * The player gets an URL like http://127.0.0.1:port/stream?url=..., all (range) requests
+ * are answered from the RangeCache if possible, missing blocks are fetched from the origin
+ * and stored in the cache while they are forwarded to the player.
+ * Replays, backward seeks and resumes are therefore served locally.
+ *
+ * The origin isn't read at the pace of the player: a Filler reads it in bursts up to
+ * FILL_AHEAD_BYTES ahead of the player, then the origin is closed (& the wifi lease released)
+ * until less than REFILL_BELOW_BYTES are cached ahead. So the radio is idle between the bursts.
+ *
+ * The live stream is not cached here (endless stream, no length), it is served from the
+ * LiveTimeshift ring via http://127.0.0.1:port/live?pos=...
+ */
+public class StreamProxy {
+    private final static String PATH_PREFIX = "/stream?url=";
+    private final static String LIVE_PREFIX = "/live?pos=";
+    /** high watermark: a burst fills the cache up to this far ahead of the player (~2min at 128kbit/s) **/
+    private final static long FILL_AHEAD_BYTES = 64L * RangeCache.BLOCK_SIZE;
+    /** low watermark: the next burst starts, if less is cached ahead of the player **/
+    private final static long REFILL_BELOW_BYTES = 8L * RangeCache.BLOCK_SIZE;
+
+    private final RangeCache cache;
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+    private BufferPolicy bufferPolicy;
+    private LiveTimeshift timeshift;
+    private LockLeaseManager locks;
+    //open player connections & their fillers (guarded by clients), closed by stop()
+    private final HashSet<Socket> clients = new HashSet<>();
+    private final HashSet<Filler> fillers = new HashSet<>();
+
+    public StreamProxy(RangeCache cache) {
+        this.cache = cache;
+    }
+
+    /** start listening on a random port on the loopback interface */
+    public void start() throws IOException {
+        if(running) return;
+        serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        running = true;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(running) {
+                    try {
+                        final Socket client = serverSocket.accept();
+                        if(!register(client)) break;
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleClient(client);
+                            }
+                        }, "StreamProxyClient").start();
+                    } catch (IOException e) {
+                        if(running) Log.w("STREAMPROXY", "Accept failed: " + e.getMessage());
+                    }
+                }
+            }
+        }, "StreamProxy");
+        acceptThread.start();
+    }
+
+    /** stop listening and close all player connections, their fillers close the origin connections */
+    public void stop() {
+        running = false;
+        try {
+            if(serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            Log.w("STREAMPROXY", "Close failed: " + e.getMessage());
+        }
+        serverSocket = null;
+        ArrayList<Socket> openClients;
+        ArrayList<Filler> openFillers;
+        synchronized (clients) {
+            openClients = new ArrayList<>(clients);
+            openFillers = new ArrayList<>(fillers);
+            clients.clear();
+            fillers.clear();
+        }
+        for(Filler filler : openFillers) {
+            filler.close();
+        }
+        for(Socket client : openClients) {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+        cache.flush();
+    }
+
+    /** track a new connection, false (& closed) if the proxy was stopped meanwhile */
+    private boolean register(Socket client) {
+        synchronized (clients) {
+            if(running) {
+                clients.add(client);
+                return true;
+            }
+        }
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+        return false;
+    }
+
+    /** track a filler, false if the proxy was stopped meanwhile */
+    private boolean register(Filler filler) {
+        synchronized (clients) {
+            if(!running) return false;
+            fillers.add(filler);
+            return true;
+        }
+    }
+
+    /** origin round trip times & throughput are reported to this policy */
+    public void setBufferPolicy(BufferPolicy bufferPolicy) {
+        this.bufferPolicy = bufferPolicy;
+    }
+
+    /** the wifi lock is leased while a connection fetches from the origin */
+    public void setLocks(LockLeaseManager locks) {
+        this.locks = locks;
+    }
+
+    /** the ring buffer, which is served for the live URLs */
+    public void setTimeshift(LiveTimeshift timeshift) {
+        this.timeshift = timeshift;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** translate a remote URL to the URL of this proxy, the URL is returned unchanged if the proxy is not running */
+    public String getProxyUrl(String url) {
+        if(!running || serverSocket == null) return url;
+        try {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + PATH_PREFIX + URLEncoder.encode(url, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return url;
+        }
+    }
+
+    /** URL of the time-shifted live stream, starting at the given ring position; null if the proxy is not running */
+    public String getLiveUrl(long position) {
+        if(!running || serverSocket == null) return null;
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + LIVE_PREFIX + position;
+    }
+
+    /**
+     * Fetch the first bytes of the given URL into the cache (in background), so a later
+     * playback can start without waiting for the network.
+     */
+    public void prefetch(final String url, final long bytes) {
+        if(!running) return;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                InputStream in = null;
+                try {
+                    HttpURLConnection conn = (HttpURLConnection) new URL(getProxyUrl(url)).openConnection();
+                    conn.setRequestProperty("Range", "bytes=0-" + (bytes - 1));
+                    in = conn.getInputStream();
+                    byte[] buffer = new byte[8192];
+                    //noinspection StatementWithEmptyBody
+                    while(in.read(buffer) > 0) { }
+                } catch (IOException e) {
+                    Log.w("STREAMPROXY", "Prefetch failed: " + e.getMessage());
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+        }, "StreamProxyPrefetch").start();
+    }
+
+    private void handleClient(Socket client) {
+        RangeCache.Entry entry = null;
+        InputStream origin = null;
+        Filler filler = null;
+        //held while the origin is open, cached data doesn't need the radio
+        LockLeaseManager.Lease wifiLease = locks != null ? locks.newLease(LockLeaseManager.WIFI, "proxy") : null;
+        try {
+            InputStream in = client.getInputStream();
+            OutputStream out = client.getOutputStream();
+
+            //parse the request line & the range header, everything else is ignored
+            String requestLine = readLine(in);
+            if(requestLine == null) return;
+            String[] parts = requestLine.split(" ");
+            if(parts.length >= 2 && parts[1].startsWith(LIVE_PREFIX)) {
+                handleLive(in, out, parts[0].equals("HEAD"), parts[1].substring(LIVE_PREFIX.length()));
+                return;
+            }
+            if(parts.length < 2 || !parts[1].startsWith(PATH_PREFIX)) {
+                writeStatus(out, "404 Not Found");
+                return;
+            }
+            boolean headOnly = parts[0].equals("HEAD");
+            String url = URLDecoder.decode(parts[1].substring(PATH_PREFIX.length()), "UTF-8");
+
+            long rangeStart = 0;
+            long rangeEnd = -1;
+            boolean isRange = false;
+            String line;
+            while((line = readLine(in)) != null && line.length() > 0) {
+                if(line.toLowerCase().startsWith("range:")) {
+                    String range = line.substring(6).trim();
+                    if(range.startsWith("bytes=")) {
+                        String[] bounds = range.substring(6).split("-", -1);
+                        try {
+                            rangeStart = Long.parseLong(bounds[0].trim());
+                            if(bounds.length > 1 && bounds[1].trim().length() > 0) {
+                                rangeEnd = Long.parseLong(bounds[1].trim());
+                            }
+                            isRange = true;
+                        } catch (NumberFormatException e) {
+                            rangeStart = 0;
+                        }
+                    }
+                }
+            }
+
+            entry = cache.open(url);
+
+            //unknown length: the first origin request delivers it
+            long originPos = -1;
+            if(entry.getLength() < 0) {
+                long alignedStart = rangeStart - rangeStart % RangeCache.BLOCK_SIZE;
+                if(wifiLease != null) wifiLease.acquire();
+                origin = openOrigin(url, entry, alignedStart);
+                originPos = alignedStart;
+                if(entry.getLength() < 0) {
+                    //no length from the origin -> not cacheable, simply pipe it through
+                    writeHeaders(out, "200 OK", entry.contentType, -1, null);
+                    if(!headOnly) pipe(origin, out);
+                    return;
+                }
+            }
+
+            long length = entry.getLength();
+            if(rangeEnd < 0 || rangeEnd >= length) rangeEnd = length - 1;
+            if(rangeStart >= length) {
+                writeHeaders(out, "416 Range Not Satisfiable", entry.contentType, 0, "bytes */" + length);
+                return;
+            }
+            if(isRange) {
+                writeHeaders(out, "206 Partial Content", entry.contentType, rangeEnd - rangeStart + 1,
+                        "bytes " + rangeStart + "-" + rangeEnd + "/" + length);
+            } else {
+                writeHeaders(out, "200 OK", entry.contentType, length, null);
+            }
+            if(headOnly) return;
+
+            //a small send buffer: the served position follows the player, so the watermarks are measured from there
+            client.setSendBufferSize(RangeCache.BLOCK_SIZE);
+            //the filler takes over the origin of the length request & the lease
+            filler = new Filler(url, entry, wifiLease, origin, originPos);
+            origin = null;
+            if(!register(filler)) throw new IOException("Proxy stopped");
+            new Thread(filler, "StreamProxyFill").start();
+
+            byte[] block = new byte[RangeCache.BLOCK_SIZE];
+            long pos = rangeStart;
+            while(pos <= rangeEnd) {
+                int index = (int)(pos / RangeCache.BLOCK_SIZE);
+                long blockStart = (long)index * RangeCache.BLOCK_SIZE;
+                int blockLength = entry.blockLength(index);
+
+                filler.setPlayerPosition(pos);
+                if(!entry.readBlock(index, block, blockLength)) {
+                    //not cached yet: the filler is fetching it
+                    filler.awaitBlock(index);
+                    if(!entry.readBlock(index, block, blockLength)) throw new IOException("Block " + index + " missing");
+                }
+
+                int offset = (int)(pos - blockStart);
+                int count = (int)Math.min(blockLength - offset, rangeEnd - pos + 1);
+                out.write(block, offset, count);
+                pos += count;
+            }
+            out.flush();
+        } catch (IOException e) {
+            //usually the player closed the connection (seek/stop)
+            Log.d("STREAMPROXY", "Connection closed: " + e.getMessage());
+        } finally {
+            closeQuietly(origin);
+            if(filler != null) filler.close();
+            synchronized (clients) {
+                clients.remove(client);
+                if(filler != null) fillers.remove(filler);
+            }
+            if(wifiLease != null) wifiLease.release();
+            if(entry != null) cache.release(entry);
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Serve the live stream from the ring buffer, starting at the given position.
+     * The response is endless, it blocks while the player is paused (socket buffer full)
+     * or has caught up with the live position.
+     */
+    private void handleLive(InputStream in, OutputStream out, boolean headOnly, String position) throws IOException {
+        long pos;
+        try {
+            pos = Long.parseLong(position.trim());
+        } catch (NumberFormatException e) {
+            writeStatus(out, "400 Bad Request");
+            return;
+        }
+        String line;
+        while((line = readLine(in)) != null && line.length() > 0) {
+            //a reconnect of the player continues after the bytes it already got
+            if(line.toLowerCase().startsWith("range:")) {
+                String range = line.substring(6).trim();
+                if(range.startsWith("bytes=")) {
+                    try {
+                        pos += Long.parseLong(range.substring(6).split("-", -1)[0].trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+        LiveTimeshift ring = timeshift;
+        if(ring == null || !ring.isRunning()) {
+            writeStatus(out, "404 Not Found");
+            return;
+        }
+        writeHeaders(out, "200 OK", "audio/mpeg", -1, null);
+        if(headOnly) return;
+
+        byte[] buffer = new byte[8192];
+        int[] count = new int[1];
+        try {
+            while((pos = ring.read(pos, buffer, count)) >= 0) {
+                out.write(buffer, 0, count[0]);
+            }
+        } catch (InterruptedException e) {
+            Log.d("STREAMPROXY", "Live connection interrupted");
+        }
+        out.flush();
+    }
+
+    /**
+     * Fills the cache of one proxy connection ahead of the player in bursts (see FILL_AHEAD_BYTES).
+     * The origin is only open (& the wifi lease only held) during a burst.
+     */
+    private class Filler implements Runnable {
+        private final String url;
+        private final RangeCache.Entry entry;
+        private final LockLeaseManager.Lease wifiLease;
+        //guarded by this
+        private InputStream origin;
+        private long originPos;
+        private long playerPos = 0;
+        private boolean closed = false;
+        private IOException error;
+        //bytes & time of all origin reads (throughput measurement), filler thread only
+        private long originBytes = 0;
+        private long originTime = 0;
+
+        Filler(String url, RangeCache.Entry entry, LockLeaseManager.Lease wifiLease, InputStream origin, long originPos) {
+            this.url = url;
+            this.entry = entry;
+            this.wifiLease = wifiLease;
+            this.origin = origin;
+            this.originPos = originPos;
+        }
+
+        synchronized void setPlayerPosition(long pos) {
+            if(pos == playerPos) return;
+            playerPos = pos;
+            notifyAll();
+        }
+
+        /** wait until the filler has stored the block */
+        synchronized void awaitBlock(int index) throws IOException {
+            while(!entry.hasBlock(index)) {
+                if(error != null) throw error;
+                if(closed) throw new IOException("Filler closed");
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+        }
+
+        /** the connection ends: a running burst is aborted */
+        void close() {
+            InputStream open;
+            synchronized (this) {
+                closed = true;
+                open = origin;
+                notifyAll();
+            }
+            //unblocks a read of the filler thread
+            closeQuietly(open);
+        }
+
+        /** first block at or after the player position, which isn't cached, -1 if the rest is complete */
+        private int firstMissing(long pos) {
+            int count = entry.blockCount();
+            for(int index = (int)(pos / RangeCache.BLOCK_SIZE); index < count; index++) {
+                if(!entry.hasBlock(index)) return index;
+            }
+            return -1;
+        }
+
+        @Override
+        public void run() {
+            byte[] block = new byte[RangeCache.BLOCK_SIZE];
+            try {
+                while(true) {
+                    int missing = -1;
+                    long target;
+                    synchronized (this) {
+                        //wait for the low watermark
+                        while(!closed && ((missing = firstMissing(playerPos)) < 0
+                                || (long) missing * RangeCache.BLOCK_SIZE - playerPos >= REFILL_BELOW_BYTES)) {
+                            closeOrigin();
+                            wait();
+                        }
+                        if(closed) break;
+                        target = playerPos + FILL_AHEAD_BYTES;
+                    }
+                    burst(missing, target, block);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    if(!closed) error = e;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                Log.d("STREAMPROXY", "Filler interrupted");
+            } finally {
+                synchronized (this) {
+                    closeOrigin();
+                    notifyAll();
+                }
+                if(bufferPolicy != null) bufferPolicy.recordTransfer(originBytes, originTime);
+            }
+        }
+
+        /** read the origin from the block on, until the target, a cached block or the end is reached */
+        private void burst(int index, long target, byte[] block) throws IOException {
+            int count = entry.blockCount();
+            long blockStart = (long) index * RangeCache.BLOCK_SIZE;
+            InputStream in;
+            synchronized (this) {
+                in = origin != null && originPos == blockStart ? origin : null;
+                if(in == null) closeOrigin();
+            }
+            if(in == null) {
+                //connected outside of the lock, the client thread isn't blocked meanwhile
+                if(wifiLease != null) wifiLease.acquire();
+                in = openOrigin(url, entry, blockStart);
+                synchronized (this) {
+                    origin = in;
+                    originPos = blockStart;
+                    if(closed) return;
+                }
+            }
+            while(index < count && (long) index * RangeCache.BLOCK_SIZE < target && !entry.hasBlock(index)) {
+                int blockLength = entry.blockLength(index);
+                long readStart = System.currentTimeMillis();
+                readFully(in, block, blockLength);
+                originTime += System.currentTimeMillis() - readStart;
+                originBytes += blockLength;
+                cache.putBlock(entry, index, block, blockLength);
+                synchronized (this) {
+                    if(closed) return;
+                    originPos += blockLength;
+                    notifyAll();
+                }
+                index++;
+            }
+        }
+
+        //guarded by this
+        private void closeOrigin() {
+            if(origin == null) return;
+            closeQuietly(origin);
+            origin = null;
+            if(wifiLease != null) wifiLease.release();
+        }
+    }
+
+    /**
+     * open the origin at the given offset, the length of the entry is set if it is not known yet.
+     * If the origin doesn't support ranges, the bytes before the offset are skipped.
+     */
+    private InputStream openOrigin(String url, RangeCache.Entry entry, long offset) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("GET");
+        conn.setRequestProperty("Range", "bytes=" + offset + "-");
+        long requestStart = System.currentTimeMillis();
+        conn.connect();
+        int code = conn.getResponseCode();
+        if(bufferPolicy != null) bufferPolicy.recordRtt(System.currentTimeMillis() - requestStart);
+        if(code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL) {
+            conn.disconnect();
+            throw new IOException("Origin returned " + code);
+        }
+
+        if(entry.getLength() < 0) {
+            String type = conn.getContentType();
+            if(type != null) entry.contentType = type;
+            long total = -1;
+            String contentRange = conn.getHeaderField("Content-Range");
+            if(code == HttpURLConnection.HTTP_PARTIAL && contentRange != null && contentRange.lastIndexOf('/') >= 0) {
+                try {
+                    total = Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+                } catch (NumberFormatException ignored) {
+                }
+            } else if(code == HttpURLConnection.HTTP_OK) {
+                String contentLength = conn.getHeaderField("Content-Length");
+                if(contentLength != null) {
+                    try {
+                        total = Long.parseLong(contentLength.trim());
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if(total > 0) cache.setLength(entry, total);
+        }
+
+        InputStream stream = conn.getInputStream();
+        if(code == HttpURLConnection.HTTP_OK && offset > 0) {
+            long skipped = 0;
+            while(skipped < offset) {
+                long n = stream.skip(offset - skipped);
+                if(n <= 0) throw new IOException("Origin ended while skipping");
+                skipped += n;
+            }
+        }
+        return stream;
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nConnection: close\r\nContent-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static void writeHeaders(OutputStream out, String status, String contentType, long length, String contentRange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Content-Type: ").append(contentType).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        if(length >= 0) sb.append("Content-Length: ").append(length).append("\r\n");
+        if(contentRange != null) sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while((c = in.read()) >= 0) {
+            if(c == '\n') return sb.toString();
+            if(c != '\r') sb.append((char)c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while(read < length) {
+            int n = in.read(buffer, read, length - read);
+            if(n < 0) throw new IOException("Origin ended early");
+            read += n;
+        }
+    }
+
+    private static void pipe(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int n;
+        while((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        out.flush();
+    }
+
+    private static void closeQuietly(InputStream in) {
+        if(in == null) return;
+        try {
+            in.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+/**
+ * Formats the playback progress as "mm:ss/mm:ss" into a reused char buffer (no allocations per tick)
+ */
+public class TimeFormatter {
+    private final char[] text = new char[24];
+    private int textLength = 0;
+    private final char[] previousText = new char[24];
+
+    /**
+     * format the time of the given state into the text buffer
+     * @return true, if the text differs from the last formatted one
+     */
+    public boolean format(String state, long time, long length) {
+        int previousLength = textLength;
+        System.arraycopy(text, 0, previousText, 0, textLength);
+        textLength = 0;
+        if(state.equals(MediaService.MEDIA_STATE_IDLE)) {
+            time = 0;
+            length = 0;
+        }
+        appendTime(time);
+        text[textLength++] = '/';
+        appendTime(length);
+        return !equalsText(previousText, previousLength);
+    }
+
+    public char[] getText() {
+        return text;
+    }
+
+    public int getTextLength() {
+        return textLength;
+    }
+
+    /** compare the current text with the given buffer */
+    public boolean equalsText(char[] other, int otherLength) {
+        if(otherLength != textLength) return false;
+        for(int i = 0; i < textLength; i++) {
+            if(other[i] != text[i]) return false;
+        }
+        return true;
+    }
+
+    /** copy the current text into the given buffer, returns the length */
+    public int copyText(char[] target) {
+        System.arraycopy(text, 0, target, 0, textLength);
+        return textLength;
+    }
+
+    @Override
+    public String toString() {
+        return new String(text, 0, textLength);
+    }
+
+    /** append mm:ss (minutes are not wrapped at one hour) */
+    private void appendTime(long ms) {
+        long seconds = Math.max(ms, 0) / 1000;
+        long minutes = seconds / 60;
+        seconds = seconds % 60;
+        if(minutes < 10) text[textLength++] = '0';
+        appendNumber(minutes);
+        text[textLength++] = ':';
+        text[textLength++] = (char)('0' + seconds / 10);
+        text[textLength++] = (char)('0' + seconds % 10);
+    }
+
+    private void appendNumber(long value) {
+        if(value >= 10) appendNumber(value / 10);
+        text[textLength++] = (char)('0' + value % 10);
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * Publishes the fetched program lists to the UI (the adapter) in batches.
+ *
+ * The fetch threads hand in their results (publish) or report an unchanged day (skip), the number
+ * of running fetches is announced before (expect).
+ * The collected updates are applied together in one frame (Choreographer, API 16+), as soon as all
+ * expected results are in or MAX_BATCH_DELAY_MS after the first one. A newer update of a day
+ * replaces a pending one, so superseded lists are never drawn.
+ */
+public class UiPublisher {
+    /** max. time an update waits for the rest of its refresh **/
+    private final static int MAX_BATCH_DELAY_MS = 300;
+
+    public interface Target {
+        /** apply the new list of a day, called on the main thread */
+        void apply(int day, String label, ArrayList<ORFParser.ORFProgram> programs);
+    }
+
+    private static class Update {
+        final String label;
+        final ArrayList<ORFParser.ORFProgram> programs;
+
+        Update(String label, ArrayList<ORFParser.ORFProgram> programs) {
+            this.label = label;
+            this.programs = programs;
+        }
+    }
+
+    private final Target target;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    //guarded by this
+    private final SparseArray<Update> pending = new SparseArray<>();
+    private int outstanding = 0;
+    private int superseded = 0;
+    //a requestFrame is posted (delayed or immediate)
+    private boolean requestScheduled = false;
+    //main thread only
+    private boolean frameScheduled = false;
+    private Choreographer.FrameCallback frameCallback;
+    private int publications = 0;
+    private long totalNs = 0;
+    private long maxNs = 0;
+
+    private final Runnable requestFrame = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UiPublisher.this) {
+                requestScheduled = false;
+            }
+            scheduleFrame();
+        }
+    };
+
+    private final Runnable applyPending = new Runnable() {
+        @Override
+        public void run() {
+            apply();
+        }
+    };
+
+    public UiPublisher(Target target) {
+        this.target = target;
+    }
+
+    /** fetches were started, the given number of results (publish/skip) is expected additionally */
+    public synchronized void expect(int updates) {
+        outstanding += updates;
+    }
+
+    /** a changed list of a day, may be called from any thread */
+    public void publish(int day, String label, ArrayList<ORFParser.ORFProgram> programs) {
+        synchronized (this) {
+            if(pending.get(day) != null) superseded++;
+            pending.put(day, new Update(label, programs));
+        }
+        resultArrived();
+    }
+
+    /** a result of the refresh without changes (or a failed fetch) */
+    public void skip() {
+        resultArrived();
+    }
+
+    private void resultArrived() {
+        boolean complete;
+        synchronized (this) {
+            if(outstanding > 0) outstanding--;
+            if(pending.size() == 0) return;
+            complete = outstanding == 0;
+            //the delayed request of an earlier result is still pending
+            if(!complete && requestScheduled) return;
+            requestScheduled = true;
+        }
+        if(complete) {
+            mainHandler.removeCallbacks(requestFrame);
+            mainHandler.post(requestFrame);
+        } else {
+            //don't hold back the first results too long, if a fetch is slow
+            mainHandler.postDelayed(requestFrame, MAX_BATCH_DELAY_MS);
+        }
+    }
+
+    /** apply the pending updates with the next frame (main thread) */
+    private void scheduleFrame() {
+        if(frameScheduled) return;
+        frameScheduled = true;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if(frameCallback == null) {
+                frameCallback = new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        apply();
+                    }
+                };
+            }
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        } else {
+            mainHandler.post(applyPending);
+        }
+    }
+
+    private void apply() {
+        frameScheduled = false;
+        SparseArray<Update> updates;
+        int dropped;
+        synchronized (this) {
+            if(pending.size() == 0) return;
+            updates = pending.clone();
+            pending.clear();
+            dropped = superseded;
+            superseded = 0;
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < updates.size(); i++) {
+            Update update = updates.valueAt(i);
+            target.apply(updates.keyAt(i), update.label, update.programs);
+        }
+        long duration = System.nanoTime() - start;
+
+        publications++;
+        totalNs += duration;
+        maxNs = Math.max(maxNs, duration);
+        Log.d("UIPUBLISHER", updates.size() + " lists (" + dropped + " superseded) in " + duration / 1000 + "us, avg "
+                + totalNs / publications / 1000 + "us, max " + maxNs / 1000 + "us");
+    }
+}
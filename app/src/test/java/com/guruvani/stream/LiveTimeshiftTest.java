@@ -0,0 +1,81 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+
+import static org.junit.Assert.*;
+
+public class LiveTimeshiftTest {
+    /** metadata block as sent by the server: padded with zeros to a multiple of 16 */
+    private static byte[] block(String text, String charset) throws UnsupportedEncodingException {
+        byte[] bytes = text.getBytes(charset);
+        byte[] block = new byte[(bytes.length + 15) / 16 * 16];
+        System.arraycopy(bytes, 0, block, 0, bytes.length);
+        return block;
+    }
+
+    private static String parse(String text, String charset) throws UnsupportedEncodingException {
+        byte[] block = block(text, charset);
+        return LiveTimeshift.parseStreamTitle(block, block.length);
+    }
+
+    @Test
+    public void parsesStreamTitle() throws UnsupportedEncodingException {
+        assertEquals("Morgenjournal", parse("StreamTitle='Morgenjournal';StreamUrl='';", "UTF-8"));
+    }
+
+    @Test
+    public void keepsQuotesInTitle() throws UnsupportedEncodingException {
+        assertEquals("Rock'n'Roll", parse("StreamTitle='Rock'n'Roll';", "UTF-8"));
+        //no terminating ;
+        assertEquals("It's live", parse("StreamTitle='It's live'", "UTF-8"));
+    }
+
+    @Test
+    public void decodesUtf8AndLatin1() throws UnsupportedEncodingException {
+        assertEquals("Ö1 Klassik-Treffpunkt", parse("StreamTitle='Ö1 Klassik-Treffpunkt';", "UTF-8"));
+        //older servers send Latin-1
+        assertEquals("Größe", parse("StreamTitle='Größe';", "ISO-8859-1"));
+    }
+
+    @Test
+    public void noTitle() throws UnsupportedEncodingException {
+        assertNull(LiveTimeshift.parseStreamTitle(new byte[16], 16));
+        assertNull(LiveTimeshift.parseStreamTitle(new byte[0], 0));
+        assertNull(parse("StreamUrl='http://example.com';", "UTF-8"));
+        assertNull(parse("StreamTitle='  ';", "UTF-8"));
+    }
+
+    @Test
+    public void onlyTheGivenLengthIsParsed() throws UnsupportedEncodingException {
+        byte[] block = block("StreamTitle='A';", "UTF-8");
+        //a longer (reused) buffer with a stale block behind the current one
+        byte[] buffer = new byte[64];
+        System.arraycopy(block, 0, buffer, 0, block.length);
+        byte[] stale = "StreamTitle='Old';".getBytes("UTF-8");
+        System.arraycopy(stale, 0, buffer, 32, stale.length);
+        assertEquals("A", LiveTimeshift.parseStreamTitle(buffer, block.length));
+    }
+}
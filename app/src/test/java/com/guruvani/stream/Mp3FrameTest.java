@@ -0,0 +1,138 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Mp3FrameTest {
+    //MPEG1 layer III, 128kbit/s, 44100Hz, joint stereo
+    static final int HEADER_128K = 0xFFFB9064;
+
+    @Test
+    public void parsesMpeg1Layer3() {
+        Mp3Frame frame = Mp3Frame.parse(HEADER_128K);
+        assertNotNull(frame);
+        assertEquals(1, frame.version);
+        assertEquals(3, frame.layer);
+        assertEquals(128, frame.bitrate);
+        assertEquals(44100, frame.sampleRate);
+        assertEquals(1152, frame.samples);
+        assertEquals(417, frame.length);
+        assertEquals(26122, frame.durationUs());
+        assertFalse(frame.mono);
+    }
+
+    @Test
+    public void paddingAddsOneByte() {
+        Mp3Frame frame = Mp3Frame.parse(HEADER_128K | 0x200);
+        assertNotNull(frame);
+        assertEquals(418, frame.length);
+    }
+
+    @Test
+    public void parsesMpeg2Layer3() {
+        //MPEG2 layer III, 64kbit/s, 22050Hz, mono
+        Mp3Frame frame = Mp3Frame.parse(0xFFF380C0);
+        assertNotNull(frame);
+        assertEquals(2, frame.version);
+        assertEquals(64, frame.bitrate);
+        assertEquals(22050, frame.sampleRate);
+        assertEquals(576, frame.samples);
+        assertEquals(72 * 64000 / 22050, frame.length);
+        assertTrue(frame.mono);
+        assertEquals(9, frame.sideInfoSize());
+    }
+
+    @Test
+    public void rejectsInvalidHeaders() {
+        assertNull(Mp3Frame.parse(0));
+        //no sync
+        assertNull(Mp3Frame.parse(0x7FFB9064));
+        //reserved version
+        assertNull(Mp3Frame.parse(0xFFEB9064));
+        //free format & invalid bitrate
+        assertNull(Mp3Frame.parse(0xFFFB0064));
+        assertNull(Mp3Frame.parse(0xFFFBF064));
+        //reserved sample rate
+        assertNull(Mp3Frame.parse(0xFFFB9C64));
+    }
+
+    @Test
+    public void readsXingFrameCount() {
+        Mp3Frame frame = Mp3Frame.parse(HEADER_128K);
+        byte[] data = new byte[frame.length];
+        writeInt(data, 0, HEADER_128K);
+        int xing = 4 + frame.sideInfoSize();
+        data[xing] = 'X';
+        data[xing + 1] = 'i';
+        data[xing + 2] = 'n';
+        data[xing + 3] = 'g';
+        writeInt(data, xing + 4, 1);
+        writeInt(data, xing + 8, 12345);
+        assertEquals(12345, frame.vbrFrameCount(data, 0, data.length));
+        //without the frames flag
+        writeInt(data, xing + 4, 0);
+        assertEquals(-1, frame.vbrFrameCount(data, 0, data.length));
+    }
+
+    @Test
+    public void readsVbriFrameCount() {
+        Mp3Frame frame = Mp3Frame.parse(HEADER_128K);
+        byte[] data = new byte[frame.length];
+        writeInt(data, 0, HEADER_128K);
+        data[36] = 'V';
+        data[37] = 'B';
+        data[38] = 'R';
+        data[39] = 'I';
+        writeInt(data, 36 + 14, 777);
+        assertEquals(777, frame.vbrFrameCount(data, 0, data.length));
+    }
+
+    @Test
+    public void noVbrHeader() {
+        Mp3Frame frame = Mp3Frame.parse(HEADER_128K);
+        byte[] data = new byte[frame.length];
+        writeInt(data, 0, HEADER_128K);
+        assertEquals(-1, frame.vbrFrameCount(data, 0, data.length));
+    }
+
+    @Test
+    public void id3v2SizeIsSyncsafe() {
+        byte[] head = { 'I', 'D', '3', 4, 0, 0, 0, 0, 0x02, 0x01 };
+        //(2 << 7 | 1) + 10 byte header
+        assertEquals(257 + 10, Mp3Frame.id3v2Size(head));
+        //footer
+        head[5] = 0x10;
+        assertEquals(257 + 20, Mp3Frame.id3v2Size(head));
+        assertEquals(0, Mp3Frame.id3v2Size(new byte[] { 'T', 'A', 'G', 0, 0, 0, 0, 0, 0, 0 }));
+        assertEquals(0, Mp3Frame.id3v2Size(new byte[] { 'I', 'D', '3' }));
+    }
+
+    static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
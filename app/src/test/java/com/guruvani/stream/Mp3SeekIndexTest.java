@@ -0,0 +1,118 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class Mp3SeekIndexTest {
+    private final static int FRAMES = 100;
+    private final static int TAG_SIZE = 266;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** ID3v2 tag (256 bytes + header) followed by CBR frames of 417 bytes */
+    private File writeMp3() throws IOException {
+        File mp3 = folder.newFile("program.mp3");
+        byte[] tag = new byte[TAG_SIZE];
+        tag[0] = 'I';
+        tag[1] = 'D';
+        tag[2] = '3';
+        tag[3] = 4;
+        tag[8] = 0x02;
+        byte[] frame = new byte[417];
+        Mp3FrameTest.writeInt(frame, 0, Mp3FrameTest.HEADER_128K);
+        FileOutputStream out = new FileOutputStream(mp3);
+        try {
+            out.write(tag);
+            for(int i = 0; i < FRAMES; i++) {
+                out.write(frame);
+            }
+        } finally {
+            out.close();
+        }
+        return mp3;
+    }
+
+    @Test
+    public void buildsIndexOfCbrFile() throws IOException {
+        File mp3 = writeMp3();
+        Mp3SeekIndex index = Mp3SeekIndex.build(mp3);
+        assertNotNull(index);
+        assertEquals(FRAMES * 26122L / 1000, index.getDurationMs());
+        assertEquals(mp3.length(), index.getFileLength());
+        //the first entry is the first frame behind the tag
+        assertEquals(TAG_SIZE, index.offsetFor(0));
+        assertEquals(TAG_SIZE, index.offsetFor(999));
+        //first frame at or after 1s: frame 39 (39 * 26.122ms)
+        assertEquals(TAG_SIZE + 39 * 417, index.offsetFor(1000));
+        //beyond the end: the last entry
+        assertEquals(index.offsetFor(2000), index.offsetFor(60000));
+        assertEquals(0, index.offsetFor(-1000) - TAG_SIZE);
+    }
+
+    @Test
+    public void loadsWrittenSidecar() throws IOException {
+        File mp3 = writeMp3();
+        Mp3SeekIndex built = Mp3SeekIndex.build(mp3);
+        Mp3SeekIndex loaded = Mp3SeekIndex.load(mp3);
+        assertNotNull(built);
+        assertNotNull(loaded);
+        assertEquals(built.getDurationMs(), loaded.getDurationMs());
+        for(long time = 0; time < 3000; time += 500) {
+            assertEquals(built.offsetFor(time), loaded.offsetFor(time));
+        }
+    }
+
+    @Test
+    public void sidecarOfChangedFileIsIgnored() throws IOException {
+        File mp3 = writeMp3();
+        Mp3SeekIndex.build(mp3);
+        FileOutputStream out = new FileOutputStream(mp3, true);
+        try {
+            out.write(new byte[417]);
+        } finally {
+            out.close();
+        }
+        assertNull(Mp3SeekIndex.load(mp3));
+    }
+
+    @Test
+    public void noIndexWithoutFrames() throws IOException {
+        File file = folder.newFile("text.mp3");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("no audio in here".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        assertNull(Mp3SeekIndex.build(file));
+    }
+}
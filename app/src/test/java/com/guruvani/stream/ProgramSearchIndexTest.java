@@ -0,0 +1,58 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ProgramSearchIndexTest {
+    private static ArrayList<String> tokens(String... words) {
+        return new ArrayList<>(Arrays.asList(words));
+    }
+
+    @Test
+    public void splitsIntoLowerCaseWords() {
+        assertEquals(tokens("morgen", "journal", "07", "00"), ProgramSearchIndex.tokenize("Morgen-Journal 07:00"));
+    }
+
+    @Test
+    public void removesDiacritics() {
+        assertEquals(tokens("o1", "horspiel", "strasse"), ProgramSearchIndex.tokenize("Ö1 Hörspiel: Straße"));
+        assertEquals(tokens("cafe"), ProgramSearchIndex.tokenize("Café"));
+    }
+
+    @Test
+    public void wordsAreDistinct() {
+        assertEquals(tokens("jazz", "und", "mehr"), ProgramSearchIndex.tokenize("Jazz und mehr Jazz, JAZZ"));
+    }
+
+    @Test
+    public void emptyText() {
+        assertTrue(ProgramSearchIndex.tokenize(null).isEmpty());
+        assertTrue(ProgramSearchIndex.tokenize("").isEmpty());
+        assertTrue(ProgramSearchIndex.tokenize(" - ").isEmpty());
+    }
+}
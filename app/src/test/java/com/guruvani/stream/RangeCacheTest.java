@@ -0,0 +1,145 @@
+/**
+ Copyright:
+ 2015/2016 Sunny Dasari
+ developer.google.com
+
+ This file is part of AustrianPublicStream.
+
+ GuruVani is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ GuruVani is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with GuruVani.  If not, see <http://www.gnu.org/licenses/>.
+ **/
+
+package com.guruvani.stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class RangeCacheTest {
+    private final static int BLOCK = RangeCache.BLOCK_SIZE;
+    //a file with a short last block
+    private final static long LENGTH = 2L * BLOCK + 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+    private final byte[] buffer = new byte[BLOCK];
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("cache");
+        for(int i = 0; i < buffer.length; i++) {
+            buffer[i] = (byte) i;
+        }
+    }
+
+    private RangeCache.Entry fill(RangeCache cache, String url, long length) throws IOException {
+        RangeCache.Entry entry = cache.open(url);
+        cache.setLength(entry, length);
+        for(int block = 0; block < entry.blockCount(); block++) {
+            cache.putBlock(entry, block, buffer, entry.blockLength(block));
+        }
+        return entry;
+    }
+
+    @Test
+    public void countsShortLastBlockWithItsLength() throws IOException {
+        RangeCache cache = new RangeCache(dir, 100L * BLOCK);
+        RangeCache.Entry entry = fill(cache, "http://a", LENGTH);
+        assertEquals(3, entry.blockCount());
+        assertEquals(100, entry.blockLength(2));
+        assertEquals(LENGTH, entry.cachedBytes());
+        assertEquals(LENGTH, cache.getUsedBytes());
+        assertTrue(entry.isComplete());
+    }
+
+    @Test
+    public void storedBlockIsCountedOnce() throws IOException {
+        RangeCache cache = new RangeCache(dir, 100L * BLOCK);
+        RangeCache.Entry entry = fill(cache, "http://a", LENGTH);
+        cache.putBlock(entry, 2, buffer, 100);
+        assertEquals(LENGTH, cache.getUsedBytes());
+    }
+
+    @Test
+    public void evictionSubtractsWhatWasAdded() throws IOException {
+        RangeCache cache = new RangeCache(dir, 4L * BLOCK);
+        RangeCache.Entry a = fill(cache, "http://a", LENGTH);
+        cache.release(a);
+        //the second file exceeds the limit: the released one is evicted
+        RangeCache.Entry b = fill(cache, "http://b", LENGTH);
+        assertEquals(LENGTH, cache.getUsedBytes());
+        cache.release(b);
+        RangeCache.Entry reopened = cache.open("http://a");
+        assertEquals(-1, reopened.getLength());
+        cache.release(reopened);
+    }
+
+    @Test
+    public void entriesInUseAreNotEvicted() throws IOException {
+        RangeCache cache = new RangeCache(dir, 4L * BLOCK);
+        RangeCache.Entry a = fill(cache, "http://a", LENGTH);
+        RangeCache.Entry b = fill(cache, "http://b", LENGTH);
+        assertEquals(2 * LENGTH, cache.getUsedBytes());
+        assertTrue(a.hasBlock(0));
+        assertTrue(b.hasBlock(0));
+        cache.release(a);
+        assertEquals(LENGTH, cache.getUsedBytes());
+        cache.release(b);
+    }
+
+    @Test
+    public void changedLengthDropsTheBlocks() throws IOException {
+        RangeCache cache = new RangeCache(dir, 100L * BLOCK);
+        RangeCache.Entry entry = fill(cache, "http://a", LENGTH);
+        cache.setLength(entry, LENGTH + 1);
+        assertEquals(0, cache.getUsedBytes());
+        assertFalse(entry.hasBlock(0));
+        //same length: nothing is dropped
+        cache.putBlock(entry, 0, buffer, BLOCK);
+        cache.setLength(entry, LENGTH + 1);
+        assertEquals(BLOCK, cache.getUsedBytes());
+    }
+
+    @Test
+    public void readsStoredBlocks() throws IOException {
+        RangeCache cache = new RangeCache(dir, 100L * BLOCK);
+        RangeCache.Entry entry = fill(cache, "http://a", LENGTH);
+        byte[] read = new byte[BLOCK];
+        assertTrue(entry.readBlock(2, read, 100));
+        for(int i = 0; i < 100; i++) {
+            assertEquals(buffer[i], read[i]);
+        }
+        cache.setLength(entry, LENGTH + 1);
+        assertFalse(entry.readBlock(2, read, 100));
+    }
+
+    @Test
+    public void reloadedCacheHasTheSameSize() throws IOException {
+        RangeCache cache = new RangeCache(dir, 100L * BLOCK);
+        RangeCache.Entry entry = fill(cache, "http://a", LENGTH);
+        cache.release(entry);
+        cache.flush();
+        RangeCache reloaded = new RangeCache(dir, 100L * BLOCK);
+        assertEquals(LENGTH, reloaded.getUsedBytes());
+        RangeCache.Entry again = reloaded.open("http://a");
+        assertTrue(again.isComplete());
+        reloaded.release(again);
+    }
+}